@@ -3,30 +3,69 @@ package jlite;
 import jlite.parser.Ast;
 
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.LinkedHashMap;
+import java.util.List;
 
 public class ClasDescriptor {
     public final String cname;
     public HashMap<String, Ast.VarDecl> vars = new HashMap<>();
-    public HashMap<String, Set<Ast.FuncTyp>> methods = new HashMap<>();
+    public HashMap<String, LinkedHashMap<Ast.FuncTyp, Ast.MdDecl>> methods = new HashMap<>(); // by name, then signature
+    private final HashMap<MethodKey, Ast.MdDecl> methodIndex = new HashMap<>(); // by name and arg types, for call resolution
 
     public ClasDescriptor(Ast.Clas clas) {
         this.cname = clas.cname;
     }
 
     public boolean hasMethodSignature(String method, Ast.FuncTyp funcTyp) {
-        return methods.containsKey(method) && methods.get(method).contains(funcTyp);
+        return methods.containsKey(method) && methods.get(method).containsKey(funcTyp);
     }
 
-    public void addMethodSignature(String method, Ast.FuncTyp funcTyp) {
+    /**
+     * Returns the method called name taking exactly argTyps, or null if there is none.
+     */
+    public Ast.MdDecl resolve(String name, List<Ast.Typ> argTyps) {
+        return methodIndex.get(new MethodKey(name, argTyps));
+    }
+
+    public void addMethodSignature(String method, Ast.FuncTyp funcTyp, Ast.MdDecl mdDecl) {
         assert (!hasMethodSignature(method, funcTyp));
+        methodIndex.put(new MethodKey(method, funcTyp.argTyps), mdDecl);
         if (methods.containsKey(method)) {
-            methods.get(method).add(funcTyp);
+            methods.get(method).put(funcTyp, mdDecl);
         } else {
-            HashSet<Ast.FuncTyp> s = new HashSet<>();
-            s.add(funcTyp);
-            methods.put(method, s);
+            LinkedHashMap<Ast.FuncTyp, Ast.MdDecl> m = new LinkedHashMap<>();
+            m.put(funcTyp, mdDecl);
+            methods.put(method, m);
+        }
+    }
+
+    /**
+     * Types are interned, so the arg types are compared by identity and hash with their identity hash codes.
+     */
+    private static class MethodKey {
+        final String name;
+        final List<Ast.Typ> argTyps;
+
+        MethodKey(String name, List<Ast.Typ> argTyps) {
+            this.name = name;
+            this.argTyps = argTyps;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + argTyps.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof MethodKey)) return false;
+            MethodKey other = (MethodKey) obj;
+            if (!name.equals(other.name) || argTyps.size() != other.argTyps.size()) return false;
+            for (int i = 0; i < argTyps.size(); i++) {
+                if (argTyps.get(i) != other.argTyps.get(i)) return false;
+            }
+            return true;
         }
     }
 }
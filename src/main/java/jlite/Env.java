@@ -1,7 +1,5 @@
 package jlite;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Multimap;
 import jlite.exceptions.SemanticException;
 import jlite.parser.Ast;
 
@@ -10,19 +8,58 @@ import java.util.*;
 /**
  * Environment for a Jlite program.
  * The environment maps variables declared locally to their types.
- * Here, we implement lexical scoping; a child environment is able to access items in the parent environment.
+ * Here, we implement lexical scoping: a name resolves to its binding in the innermost scope that declares it.
+ * <p>
+ * The table is flat. Each name maps to its innermost binding, which links to the binding it shadows, so a
+ * lookup is a single hash probe. Bindings are also kept in an undo log, and leaving a scope pops the log back
+ * to where the scope was entered, restoring the shadowed bindings. The checker resolves each identifier once
+ * with {@link #resolve(String)}, and keeps the declaration of the binding on the Ast node.
  */
 public class Env {
-    private final Env parent;
-    private final Multimap<String, Ast.Typ> typMap = ArrayListMultimap.create();
-    private final HashMap<String, Ast.VarDecl> varDeclMap = new HashMap<>();
+    private final HashMap<String, Binding> bindings = new HashMap<>();
+    private final ArrayList<Binding> log = new ArrayList<>();
+    private final ArrayList<Integer> scopeStarts = new ArrayList<>(); // log size when each open scope was entered
+
+    static class Binding {
+        final String name;
+        final Ast.Typ typ;
+        final Ast.VarDecl varDecl; // null for methods and other names without a declaration
+        final int depth;
+        final Binding shadowed;
+
+        Binding(String name, Ast.Typ typ, Ast.VarDecl varDecl, int depth, Binding shadowed) {
+            this.name = name;
+            this.typ = typ;
+            this.varDecl = varDecl;
+            this.depth = depth;
+            this.shadowed = shadowed;
+        }
+
+        /**
+         * Returns the innermost declaration of the name, skipping bindings without one.
+         */
+        Ast.VarDecl declaration() {
+            for (Binding binding = this; binding != null; binding = binding.shadowed) {
+                if (binding.varDecl != null) return binding.varDecl;
+            }
+            return null;
+        }
+    }
 
-    Env() {
-        this.parent = null;
+    void enterScope() {
+        scopeStarts.add(log.size());
     }
 
-    Env(Env parent) {
-        this.parent = parent;
+    void exitScope() {
+        int start = scopeStarts.remove(scopeStarts.size() - 1);
+        for (int i = log.size() - 1; i >= start; i--) {
+            Binding binding = log.remove(i);
+            if (binding.shadowed == null) {
+                bindings.remove(binding.name);
+            } else {
+                bindings.put(binding.name, binding.shadowed);
+            }
+        }
     }
 
     /**
@@ -32,61 +69,52 @@ public class Env {
      */
     void populate(ClasDescriptor desc) {
 //        Populate methods first
-        for (Map.Entry<String, Set<Ast.FuncTyp>> entry : desc.methods.entrySet()) {
+        for (Map.Entry<String, LinkedHashMap<Ast.FuncTyp, Ast.MdDecl>> entry : desc.methods.entrySet()) {
             String method = entry.getKey();
-            for (Ast.FuncTyp t : entry.getValue()) {
-                putTyp(method, t);
+            for (Ast.FuncTyp t : entry.getValue().keySet()) {
+                put(method, t, null);
             }
         }
 
         for (Map.Entry<String, Ast.VarDecl> entry : desc.vars.entrySet()) {
-            Ast.Typ t = entry.getValue().type;
-            putTyp(entry.getKey(), t);
-            putVarDecl(entry.getKey(), entry.getValue());
+            put(entry.getKey(), entry.getValue().type, entry.getValue());
         }
 
         // Add "this"
-        putTyp("this", new Ast.ClasTyp(desc.cname));
-    }
-
-    Ast.VarDecl getVarDecl(String name) {
-        Ast.VarDecl varDecl = varDeclMap.get(name);
-        if (varDecl == null && parent != null) {
-            varDecl = parent.getVarDecl(name);
-        }
-        return varDecl;
+        put("this", Ast.ClasTyp.of(desc.cname), null);
     }
 
-    private void putVarDecl(String name, Ast.VarDecl varDecl) {
-        varDeclMap.put(name, varDecl);
+    private void put(String name, Ast.Typ typ, Ast.VarDecl varDecl) {
+        Binding binding = new Binding(name, typ, varDecl, scopeStarts.size(), bindings.get(name));
+        bindings.put(name, binding);
+        log.add(binding);
     }
 
-    private void putTyp(String name, Ast.Typ typ) {
-        typMap.put(name, typ);
+    Ast.Typ getTypOne(String name) throws SemanticException {
+        Binding binding = resolve(name);
+        return binding == null ? null : binding.typ;
     }
 
-    Ast.Typ getTypOne(String name) throws SemanticException {
-        Collection<Ast.Typ> typList = typMap.get(name);
-        if (typList.isEmpty()) {
-            if (parent != null) return parent.getTypOne(name);
-            return null;
-        } else {
-            if (typList.size() != 1) {
-                throw new SemanticException(String.format("Environment contains more than one of '%s': '%s'", name, typList.toString()));
-            }
-            return typList.iterator().next();
+    /**
+     * Returns the innermost binding of name, or null if it is not bound, with a single probe of the table.
+     * A name bound more than once in its innermost scope is ambiguous.
+     */
+    Binding resolve(String name) throws SemanticException {
+        Binding binding = bindings.get(name);
+        if (binding != null && binding.shadowed != null && binding.shadowed.depth == binding.depth) {
+            throw new SemanticException(String.format("Environment contains more than one of '%s': '%s'", name, getTyp(name).toString()));
         }
+        return binding;
     }
 
     ArrayList<SemanticException> populate(Ast.MdDecl mdDecl, HashMap<String, ClasDescriptor> classDescs) {
         ArrayList<SemanticException> errors = new ArrayList<>();
 
         for (Ast.VarDecl varDecl : mdDecl.args) {
-            typMap.put(varDecl.ident, varDecl.type);
-            varDeclMap.put(varDecl.ident, varDecl);
+            put(varDecl.ident, varDecl.type, varDecl);
         }
 
-        typMap.put("Ret", mdDecl.retTyp);
+        put("Ret", mdDecl.retTyp, null);
 
         // Override vars
         for (Ast.VarDecl varDecl : mdDecl.vars) {
@@ -94,8 +122,7 @@ public class Env {
                 errors.add(new SemanticException(varDecl, String.format("invalid variable type '%s'", varDecl.type)));
                 continue;
             }
-            putTyp(varDecl.ident, varDecl.type);
-            varDeclMap.put(varDecl.ident, varDecl);
+            put(varDecl.ident, varDecl.type, varDecl);
         }
 
         return errors;
@@ -108,26 +135,31 @@ public class Env {
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        String parentString = parent == null ? "{}" : parent.toString();
-        sb.append("parent: ").append(parentString).append("\n");
-        sb.append("locals: ")
-                .append(typMap.toString())
-                .append(varDeclMap.toString());
+        for (Binding binding : log) {
+            sb.append(binding.depth)
+                    .append(": ")
+                    .append(binding.name)
+                    .append(" -> ")
+                    .append(binding.typ)
+                    .append("\n");
+        }
         return sb.toString();
     }
 
     boolean contains(String name) {
-        Collection<Ast.Typ> candidates = getTyp(name);
-        return candidates != null && !getTyp(name).isEmpty();
+        return bindings.containsKey(name);
     }
 
+    /**
+     * Returns the types bound to name in the innermost scope that declares it, in declaration order.
+     */
     public Collection<Ast.Typ> getTyp(String name) {
-        Collection<Ast.Typ> typList = typMap.get(name);
-        if (typList.isEmpty()) {
-            if (parent != null) return parent.getTyp(name);
-            return new ArrayList<>();
-        } else {
-            return typList;
+        ArrayList<Ast.Typ> typs = new ArrayList<>();
+        Binding binding = bindings.get(name);
+        for (Binding b = binding; b != null && b.depth == binding.depth; b = b.shadowed) {
+            typs.add(b.typ);
         }
+        Collections.reverse(typs);
+        return typs;
     }
 }
@@ -8,6 +8,7 @@ import java.util.*;
 public class StaticChecker {
     private HashMap<String, ClasDescriptor> classDescs = new HashMap<>();
     private Env env = new Env();
+    private ClasDescriptor clasDesc; // class being checked
 
     public void run(Ast.Prog prog) throws SemanticException {
         this.init(prog); // May throw, if already semantically invalid
@@ -20,16 +21,19 @@ public class StaticChecker {
 
     private void checkClass(Ast.Clas clas) throws SemanticException {
         ClasDescriptor desc = classDescs.get(clas.cname);
+        clasDesc = desc;
         env = new Env();
+        env.enterScope();
         env.populate(desc);
 
         for (Ast.MdDecl mdDecl : clas.mdDeclList) {
             checkMdDecl(mdDecl);
         }
+        env.exitScope();
     }
 
     private void checkMdDecl(Ast.MdDecl mdDecl) throws SemanticException {
-        env = new Env(env);
+        env.enterScope();
         env.populate(mdDecl, classDescs);
 
         Ast.Typ lastTyp = checkStmts(mdDecl.stmts);
@@ -37,6 +41,7 @@ public class StaticChecker {
         if (!lastTyp.isSubTypeOrEquals(mdDecl.retTyp)) {
             throw new SemanticException(mdDecl, String.format("Method body type '%s' not equal to return type '%s'", lastTyp, mdDecl.retTyp));
         }
+        env.exitScope();
     }
 
     private Ast.Typ checkStmts(List<Ast.Stmt> stmts) throws SemanticException {
@@ -63,7 +68,7 @@ public class StaticChecker {
             Ast.Expr cond = ifStmt.cond;
 
             Ast.Typ condTyp = checkExpr(cond);
-            if (!condTyp.equals(new Ast.BoolTyp())) {
+            if (condTyp != Ast.Typ.BOOL) {
                 throw new SemanticException(cond, String.format("Cond '%s': returns %s, expecting boolean.", cond.print(), condTyp.toString()));
             }
 
@@ -82,7 +87,7 @@ public class StaticChecker {
             Ast.WhileStmt whileStmt = (Ast.WhileStmt) stmt;
             Ast.Typ condTyp = checkExpr(whileStmt.cond);
 
-            if (!condTyp.isSubTypeOrEquals(new Ast.BoolTyp())) {
+            if (!condTyp.isSubTypeOrEquals(Ast.Typ.BOOL)) {
                 throw new SemanticException(whileStmt.cond, String.format("condition in while statement needs to be bool. Got '%s'", condTyp));
             }
 
@@ -90,31 +95,23 @@ public class StaticChecker {
         } else if (stmt instanceof Ast.ReadlnStmt) {
             Ast.ReadlnStmt readlnStmt = (Ast.ReadlnStmt) stmt;
 
-            if (!env.contains(readlnStmt.ident)) {
+            Env.Binding binding = env.resolve(readlnStmt.ident);
+            if (binding == null) {
                 throw new SemanticException(stmt, String.format("Unknown symbol: '%s'", readlnStmt.ident));
             }
 
-            Ast.Typ identTyp = env.getTypOne(readlnStmt.ident);
+            Ast.Typ identTyp = binding.typ;
 
-            ArrayList<Ast.Typ> validTypes = new ArrayList<>();
-            validTypes.add(new Ast.IntTyp());
-            validTypes.add(new Ast.StringTyp());
-            validTypes.add(new Ast.BoolTyp());
-            if (!validTypes.contains(identTyp)) {
+            if (!isBasicType(identTyp)) {
                 throw new SemanticException(stmt, "ident not of type Int, String or Bool.'");
             }
-            readlnStmt.varDecl = env.getVarDecl(readlnStmt.ident);
-            return new Ast.VoidTyp();
+            readlnStmt.varDecl = binding.declaration();
+            return Ast.Typ.VOID;
         } else if (stmt instanceof Ast.PrintlnStmt) {
             Ast.PrintlnStmt printlnStmt = (Ast.PrintlnStmt) stmt;
             Ast.Typ exprTyp = checkExpr(printlnStmt.expr);
 
-            ArrayList<Ast.Typ> validTypes = new ArrayList<>();
-            validTypes.add(new Ast.IntTyp());
-            validTypes.add(new Ast.StringTyp());
-            validTypes.add(new Ast.BoolTyp());
-
-            if (!(validTypes.contains(exprTyp))) {
+            if (!isBasicType(exprTyp)) {
                 throw new SemanticException(stmt, String.format("println statement expr of type '%s', expecting Int, String or Bool", exprTyp));
             }
         } else if (stmt instanceof Ast.VarAssignStmt) {
@@ -122,9 +119,10 @@ public class StaticChecker {
             String ident = varAssignStmt.lhs;
             Ast.Expr rhs = varAssignStmt.rhs;
 
-            if (!env.contains(ident))
+            Env.Binding binding = env.resolve(ident);
+            if (binding == null)
                 throw new SemanticException(varAssignStmt, String.format("unknown symbol '%s'", ident));
-            Ast.Typ identTyp = env.getTypOne(ident);
+            Ast.Typ identTyp = binding.typ;
 
             Ast.Typ rhsTyp = checkExpr(rhs);
 
@@ -132,9 +130,9 @@ public class StaticChecker {
                 throw new SemanticException(rhs, String.format("varassign: rhs '%s' not subtype of ident type '%s'.", rhsTyp, identTyp));
             }
 
-            varAssignStmt.varDecl = env.getVarDecl(varAssignStmt.lhs);
+            varAssignStmt.varDecl = binding.declaration();
 
-            return new Ast.VoidTyp();
+            return Ast.Typ.VOID;
         } else if (stmt instanceof Ast.FieldAssignStmt) {
             Ast.FieldAssignStmt fieldAssignStmt = (Ast.FieldAssignStmt) stmt;
             Ast.Typ lhsExprTyp = checkExpr(fieldAssignStmt.lhsExpr);
@@ -161,7 +159,7 @@ public class StaticChecker {
                 throw new SemanticException(fieldAssignStmt.rhs, String.format("fieldassign: rhs of type '%s' not subtype of lhs of type '%s'", rhsExprTyp, lhsExprTyp));
             }
 
-            return new Ast.VoidTyp();
+            return Ast.Typ.VOID;
         } else if (stmt instanceof Ast.ReturnStmt) {
             Ast.ReturnStmt returnStmt = (Ast.ReturnStmt) stmt;
             Ast.Typ retTyp = env.getTypOne("Ret");
@@ -196,7 +194,7 @@ public class StaticChecker {
         } else {
             assert (false); // Should not reach here
         }
-        return new Ast.VoidTyp();
+        return Ast.Typ.VOID;
     }
 
     /**
@@ -253,32 +251,36 @@ public class StaticChecker {
                     args.put(arg.ident, arg);
                 }
 
-                Ast.FuncTyp funcTyp = new Ast.FuncTyp(mdDecl);
+                Ast.FuncTyp funcTyp = Ast.FuncTyp.of(mdDecl);
                 if (desc.hasMethodSignature(mdDecl.name, funcTyp)) {
                     throw new SemanticException(mdDecl, String.format("Duplicate method signature '%s' for method '%s' of class '%s'", funcTyp.toString(), mdDecl.name, c.cname));
                 } else {
-                    desc.addMethodSignature(mdDecl.name, funcTyp);
+                    desc.addMethodSignature(mdDecl.name, funcTyp, mdDecl);
                 }
             }
         }
     }
 
+    private static boolean isBasicType(Ast.Typ type) {
+        return type == Ast.Typ.INT || type == Ast.Typ.STRING || type == Ast.Typ.BOOL;
+    }
+
     private boolean isValidType(Ast.Typ type) {
         return !(type instanceof Ast.ClasTyp) || classDescs.containsKey(((Ast.ClasTyp) type).cname);
     }
 
     private Ast.Typ checkExpr(Ast.Expr expr) throws SemanticException {
         if (expr instanceof Ast.IntLitExpr) {
-            expr.typ = new Ast.IntTyp();
+            expr.typ = Ast.Typ.INT;
             return expr.typ;
         } else if (expr instanceof Ast.StringLitExpr) {
-            expr.typ = new Ast.StringTyp();
+            expr.typ = Ast.Typ.STRING;
             return expr.typ;
         } else if (expr instanceof Ast.NullLitExpr) {
-            expr.typ = new Ast.NullTyp();
+            expr.typ = Ast.Typ.NULL;
             return expr.typ;
         } else if (expr instanceof Ast.BoolLitExpr) {
-            expr.typ = new Ast.BoolTyp();
+            expr.typ = Ast.Typ.BOOL;
             return expr.typ;
         } else if (expr instanceof Ast.ThisExpr) {
             if (env.contains("this")) {
@@ -289,9 +291,10 @@ public class StaticChecker {
             return expr.typ;
         } else if (expr instanceof Ast.IdentExpr) {
             String ident = ((Ast.IdentExpr) expr).ident;
-            if (env.contains(ident)) {
-                expr.typ = env.getTypOne(ident);
-                ((Ast.IdentExpr) expr).varDecl = env.getVarDecl(ident);
+            Env.Binding binding = env.resolve(ident);
+            if (binding != null) {
+                expr.typ = binding.typ;
+                ((Ast.IdentExpr) expr).varDecl = binding.declaration();
             } else {
                 throw new SemanticException(expr, String.format("unknown symbol '%s'", ident));
             }
@@ -301,16 +304,16 @@ public class StaticChecker {
             Ast.Typ ut = checkExpr(uexpr);
             switch (unaryExpr.op) {
                 case NOT:
-                    if (!ut.isSubTypeOrEquals(new Ast.BoolTyp())) {
-                        throw new SemanticException(ut, String.format("NOT operation expects boolean, got %%s%s", ut));
+                    if (!ut.isSubTypeOrEquals(Ast.Typ.BOOL)) {
+                        throw new SemanticException(uexpr, String.format("NOT operation expects boolean, got %%s%s", ut));
                     }
-                    expr.typ = new Ast.BoolTyp();
+                    expr.typ = Ast.Typ.BOOL;
                     return expr.typ;
                 case NEGATIVE:
-                    if (!ut.isSubTypeOrEquals(new Ast.IntTyp())) {
-                        throw new SemanticException(ut, String.format("NEG operation expects int, got %%s%s", ut));
+                    if (!ut.isSubTypeOrEquals(Ast.Typ.INT)) {
+                        throw new SemanticException(uexpr, String.format("NEG operation expects int, got %%s%s", ut));
                     }
-                    expr.typ = new Ast.IntTyp();
+                    expr.typ = Ast.Typ.INT;
                     return expr.typ;
             }
         } else if (expr instanceof Ast.BinaryExpr) {
@@ -327,38 +330,38 @@ public class StaticChecker {
                 case MULT:
                 case DIV:
                     // [Arith]
-                    if (!lhsTyp.isSubTypeOrEquals(new Ast.IntTyp()))
+                    if (!lhsTyp.isSubTypeOrEquals(Ast.Typ.INT))
                         throw new SemanticException(lhs, String.format("%s: expected assignable to Int on lhs, got: %s", op, lhsTyp));
-                    if (!rhsTyp.isSubTypeOrEquals(new Ast.IntTyp()))
+                    if (!rhsTyp.isSubTypeOrEquals(Ast.Typ.INT))
                         throw new SemanticException(rhs, String.format("%s: expected assignable to Int on rhs, got: %s", op, rhsTyp));
-                    expr.typ = new Ast.IntTyp();
+                    expr.typ = Ast.Typ.INT;
                     return expr.typ;
                 case LT:
                 case GT:
                 case LEQ:
                 case GEQ:
                     // [Rel]
-                    if (!lhsTyp.isSubTypeOrEquals(new Ast.IntTyp()))
+                    if (!lhsTyp.isSubTypeOrEquals(Ast.Typ.INT))
                         throw new SemanticException(lhs, String.format("%s: expected assignable to Int on lhs, got: %s", op, lhsTyp));
-                    if (!rhsTyp.isSubTypeOrEquals(new Ast.IntTyp()))
+                    if (!rhsTyp.isSubTypeOrEquals(Ast.Typ.INT))
                         throw new SemanticException(rhs, String.format("%s: expected assignable to Int on rhs, got: %s", op, rhsTyp));
-                    expr.typ = new Ast.BoolTyp();
+                    expr.typ = Ast.Typ.BOOL;
                     return expr.typ;
                 case EQ:
                 case NEQ:
                     // [Rel] enhanced for subtyping
                     if (!(lhsTyp.isSubTypeOrEquals(rhsTyp) || rhsTyp.isSubTypeOrEquals(lhsTyp)))
                         throw new SemanticException(expr, String.format("%s: expected LHS/RHS types to be compatible, got lhs: %s and rhs: %s", op, lhsTyp, rhsTyp));
-                    expr.typ = new Ast.BoolTyp();
+                    expr.typ = Ast.Typ.BOOL;
                     return expr.typ;
                 case AND:
                 case OR:
                     // [Bool]
-                    if (!lhsTyp.isSubTypeOrEquals(new Ast.BoolTyp()))
+                    if (!lhsTyp.isSubTypeOrEquals(Ast.Typ.BOOL))
                         throw new SemanticException(expr, String.format("%s: expected assignable to Bool on lhs, got: %s", op, lhsTyp));
-                    if (!rhsTyp.isSubTypeOrEquals(new Ast.BoolTyp()))
+                    if (!rhsTyp.isSubTypeOrEquals(Ast.Typ.BOOL))
                         throw new SemanticException(expr, String.format("%s: expected assignable to Bool on rhs, got: %s", op, rhsTyp));
-                    expr.typ = new Ast.BoolTyp();
+                    expr.typ = Ast.Typ.BOOL;
                     return expr.typ;
                 default:
                     throw new AssertionError("Jlite Compiler Error: should not reach here!");
@@ -400,26 +403,13 @@ public class StaticChecker {
                     argTyps.add(checkExpr(arg));
                 }
 
-                Collection<Ast.Typ> candidates = env.getTyp(identExpr.ident);
-                if (candidates.isEmpty()) {
-                    throw new SemanticException(identExpr, String.format("No such target in env:'%s'", identExpr.ident));
-                }
-
-                Ast.FuncTyp candidate = null;
-                for (Ast.Typ c : candidates) {
-                    if (c instanceof Ast.FuncTyp) {
-                        if (((Ast.FuncTyp) c).argTyps.equals(argTyps)) {
-                            candidate = (Ast.FuncTyp) c;
-                        }
-                    }
-                }
-
+                Ast.MdDecl candidate = clasDesc.resolve(identExpr.ident, argTyps);
                 if (candidate == null) {
                     throw new SemanticException(String.format("No method signature '%s' for target '%s'", argTyps.toString(), identExpr.ident));
                 }
 
                 expr.typ = candidate.retTyp;
-                callExpr.mdDecl = candidate.mdDecl;
+                callExpr.mdDecl = candidate;
                 return expr.typ;
             } else if (callExpr.target instanceof Ast.DotExpr) {
                 Ast.DotExpr dotExpr = (Ast.DotExpr) callExpr.target;
@@ -446,27 +436,14 @@ public class StaticChecker {
                     argTyps.add(checkExpr(arg));
                 }
 
-                Set<Ast.FuncTyp> candidates = desc.methods.get(dotExpr.ident);
-                if (candidates.isEmpty()) {
-                    throw new SemanticException(dotExpr, String.format("No such method '%s' in class '%s'", dotExpr.ident, targetClasTyp.cname));
-                }
-
-                Ast.FuncTyp candidate = null;
-                for (Ast.Typ c : candidates) {
-                    if (c instanceof Ast.FuncTyp) {
-                        if (((Ast.FuncTyp) c).argTyps.equals(argTyps)) {
-                            candidate = (Ast.FuncTyp) c;
-                        }
-                    }
-                }
-
+                Ast.MdDecl candidate = desc.resolve(dotExpr.ident, argTyps);
                 if (candidate == null) {
                     throw new SemanticException(dotExpr, String.format("No method signature '%s' for target '%s'", argTyps.toString(), dotExpr.ident));
                 }
 
                 assert candidate.retTyp != null;
                 expr.typ = candidate.retTyp;
-                ((Ast.CallExpr) expr).mdDecl = candidate.mdDecl;
+                ((Ast.CallExpr) expr).mdDecl = candidate;
                 return expr.typ;
 
             } else {
@@ -476,7 +453,7 @@ public class StaticChecker {
             Ast.NewExpr newExpr = (Ast.NewExpr) expr;
             if (!classDescs.containsKey(newExpr.cname))
                 throw new SemanticException(String.format("no such class '%s'", newExpr.cname));
-            expr.typ = new Ast.ClasTyp(newExpr.cname);
+            expr.typ = Ast.ClasTyp.of(newExpr.cname);
             return expr.typ;
         } else {
             throw new SemanticException(expr, String.format("Unhandled expr type: %s", expr.getClass().toString()));
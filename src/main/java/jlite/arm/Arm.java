@@ -2,9 +2,9 @@ package jlite.arm;
 
 import jlite.ir.Ir3;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.StringJoiner;
 
 public class Arm {
     public static boolean isConstant(Ir3.Rval rv) {
@@ -116,8 +116,16 @@ public class Arm {
             return suffix;
         }
     }
+    /**
+     * print() renders a node to a String. print(Appendable) writes it straight to out; programs and blocks
+     * override it so that a program can be written out one instruction at a time.
+     */
     public interface Printable {
         String print();
+
+        default void print(Appendable out) throws IOException {
+            out.append(print());
+        }
     }
 
     public static class Prog implements Printable {
@@ -133,20 +141,23 @@ public class Arm {
 
         @Override
         public String print() {
-            StringBuilder sb = new StringBuilder();
+            return Ir3.printToString(this::print);
+        }
+
+        @Override
+        public void print(Appendable out) throws IOException {
             for (String global : globals) {
-                sb.append("\t.global ").append(global).append("\n");
+                out.append("\t.global ").append(global).append("\n");
             }
-            sb.append("\n\t.text\n");
+            out.append("\n\t.text\n");
             for (Block text : textList) {
-                sb.append(text.print());
+                text.print(out);
             }
 
-            sb.append("\n\t.data\n");
+            out.append("\n\t.data\n");
             for (Block data : dataList) {
-                sb.append(data.print());
+                data.print(out);
             }
-            return sb.toString();
         }
     }
 
@@ -162,19 +173,39 @@ public class Arm {
 
         @Override
         public String print() {
-            StringBuilder sb = new StringBuilder();
+            return Ir3.printToString(this::print);
+        }
+
+        @Override
+        public void print(Appendable out) throws IOException {
             if (isPrologue) {
-                sb.append("\n");
+                out.append("\n");
             }
-            sb.append(name).append(":\n");
+            out.append(name).append(":\n");
             for (ArmIsn instr : armIsns) {
-                sb.append(instr.print());
+                instr.print(out);
             }
-            return sb.toString();
         }
     }
 
+    /**
+     * Instructions write themselves with print(Appendable); print() renders that to a String.
+     */
     public static abstract class ArmIsn implements Printable {
+        @Override
+        public String print() {
+            return Ir3.printToString(this::print);
+        }
+
+        @Override
+        public abstract void print(Appendable out) throws IOException;
+    }
+
+    private static void printRegs(Appendable out, List<Reg> regs) throws IOException {
+        for (int i = 0; i < regs.size(); i++) {
+            if (i > 0) out.append(", ");
+            out.append(regs.get(i).print());
+        }
     }
 
     public static class PushIsn extends ArmIsn {
@@ -189,16 +220,10 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            StringBuilder sb = new StringBuilder();
-            sb.append("\tpush {");
-            StringJoiner joiner = new StringJoiner(", ");
-            for (Arm.Reg reg : regs) {
-                joiner.add(reg.print());
-            }
-            sb.append(joiner.toString())
-                    .append("}\n");
-            return sb.toString();
+        public void print(Appendable out) throws IOException {
+            out.append("\tpush {");
+            printRegs(out, regs);
+            out.append("}\n");
         }
     }
 
@@ -215,8 +240,14 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tsub %s, %s, %s\n", dst.print(), lhs.print(), rhs.print());
+        public void print(Appendable out) throws IOException {
+            out.append("\tsub ")
+                    .append(dst.print())
+                    .append(", ")
+                    .append(lhs.print())
+                    .append(", ")
+                    .append(rhs.print())
+                    .append("\n");
         }
     }
 
@@ -283,8 +314,12 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tb%s %s\n", op.print(), label);
+        public void print(Appendable out) throws IOException {
+            out.append("\tb")
+                    .append(op.print())
+                    .append(" ")
+                    .append(label)
+                    .append("\n");
         }
     }
 
@@ -301,8 +336,14 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tadd %s, %s, %s\n", dst.print(), lhs.print(), rhs.print());
+        public void print(Appendable out) throws IOException {
+            out.append("\tadd ")
+                    .append(dst.print())
+                    .append(", ")
+                    .append(lhs.print())
+                    .append(", ")
+                    .append(rhs.print())
+                    .append("\n");
         }
     }
 
@@ -318,16 +359,10 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            StringBuilder sb = new StringBuilder();
-            StringJoiner joiner = new StringJoiner(", ");
-            for (Reg reg : regs) {
-                joiner.add(reg.print());
-            }
-            sb.append("\tpop {")
-                    .append(joiner.toString())
-                    .append("}\n");
-            return sb.toString();
+        public void print(Appendable out) throws IOException {
+            out.append("\tpop {");
+            printRegs(out, regs);
+            out.append("}\n");
         }
     }
 
@@ -340,8 +375,10 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tbx %s\n", reg.print());
+        public void print(Appendable out) throws IOException {
+            out.append("\tbx ")
+                    .append(reg.print())
+                    .append("\n");
         }
     }
 
@@ -356,8 +393,12 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tldr %s, =%s\n", reg.print(), this.i);
+        public void print(Appendable out) throws IOException {
+            out.append("\tldr ")
+                    .append(reg.print())
+                    .append(", =")
+                    .append(String.valueOf(this.i))
+                    .append("\n");
         }
     }
 
@@ -374,8 +415,14 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tcmp%s %s, %s\n", cond.print(), lhs.print(), rhs.print());
+        public void print(Appendable out) throws IOException {
+            out.append("\tcmp")
+                    .append(cond.print())
+                    .append(" ")
+                    .append(lhs.print())
+                    .append(", ")
+                    .append(rhs.print())
+                    .append("\n");
         }
     }
 
@@ -390,8 +437,10 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\t.asciz \"%s\"\n", str);
+        public void print(Appendable out) throws IOException {
+            out.append("\t.asciz \"")
+                    .append(str)
+                    .append("\"\n");
         }
     }
 
@@ -406,8 +455,12 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tldr %s, =%s\n", reg.print(), label);
+        public void print(Appendable out) throws IOException {
+            out.append("\tldr ")
+                    .append(reg.print())
+                    .append(", =")
+                    .append(label)
+                    .append("\n");
         }
     }
 
@@ -422,8 +475,12 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tmov %s, %s\n", lhs.print(), rhs.print());
+        public void print(Appendable out) throws IOException {
+            out.append("\tmov ")
+                    .append(lhs.print())
+                    .append(", ")
+                    .append(rhs.print())
+                    .append("\n");
         }
     }
 
@@ -440,8 +497,14 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tmul %s, %s, %s\n", dst.print(), lhs.print(), rhs.print());
+        public void print(Appendable out) throws IOException {
+            out.append("\tmul ")
+                    .append(dst.print())
+                    .append(", ")
+                    .append(lhs.print())
+                    .append(", ")
+                    .append(rhs.print())
+                    .append("\n");
         }
     }
 
@@ -458,8 +521,14 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\trsb %s, %s, %s\n", dst.print(), lhs.print(), rhs.print());
+        public void print(Appendable out) throws IOException {
+            out.append("\trsb ")
+                    .append(dst.print())
+                    .append(", ")
+                    .append(lhs.print())
+                    .append(", ")
+                    .append(rhs.print())
+                    .append("\n");
         }
     }
 
@@ -476,12 +545,16 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            if (offset == 0) {
-                return String.format("\tstr %s, [%s]\n", dst.print(), rhs.print());
-            } else {
-                return String.format("\tstr %s, [%s, #%s]\n", dst.print(), rhs.print(), offset);
+        public void print(Appendable out) throws IOException {
+            out.append("\tstr ")
+                    .append(dst.print())
+                    .append(", [")
+                    .append(rhs.print());
+            if (offset != 0) {
+                out.append(", #")
+                        .append(String.valueOf(offset));
             }
+            out.append("]\n");
         }
     }
 
@@ -494,8 +567,10 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tbl %s\n", label);
+        public void print(Appendable out) throws IOException {
+            out.append("\tbl ")
+                    .append(label)
+                    .append("\n");
         }
     }
 
@@ -512,8 +587,14 @@ public class Arm {
         }
 
         @Override
-        public String print() {
-            return String.format("\tldr %s, [%s, #%s]\n", dst.print(), rhs.print(), offset);
+        public void print(Appendable out) throws IOException {
+            out.append("\tldr ")
+                    .append(dst.print())
+                    .append(", [")
+                    .append(rhs.print())
+                    .append(", #")
+                    .append(String.valueOf(offset))
+                    .append("]\n");
         }
     }
 }
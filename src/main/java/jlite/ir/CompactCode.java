@@ -0,0 +1,447 @@
+package jlite.ir;
+
+import jlite.parser.Ast;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * The statements of a method encoded in parallel primitive arrays: an opcode for each statement, and a
+ * kind and an int value for each of its operands. Vars are stored as indices into a table of vars,
+ * constants are stored inline, and strings, field names, labels, methods and classes are stored as
+ * indices into a table of references. Statements are grouped by block, in the order of method.blocks.
+ * <p>
+ * Passes can read the arrays directly, through {@link #op}, {@link #kind}, {@link #value} and {@link #var}.
+ * Passes that still work on Ir3 objects can read the code through {@link #stmt} and {@link #block}, which
+ * decode statements on demand. A decoded statement is a new object each time; its vars, labels, methods
+ * and classes are the original ones.
+ * <p>
+ * Operands of each opcode, in order:
+ * <pre>
+ * ALLOC        dst, size
+ * READLN       var
+ * PRINTLN      rval
+ * ASSIGN       var, rval
+ * RETURN       rval or NONE
+ * LABEL        label
+ * GOTO         label
+ * CMP          op, lhs, rhs, label
+ * FIELD_ASSIGN target, field, rval
+ * CALL         lhs or NONE, method, args...
+ * FIELD_ACCESS dst, target, field
+ * UNARY        dst, op, rval
+ * PHI          var, memory, args...
+ * LOAD         var
+ * STORE        var
+ * STACK_ARG    var, loc
+ * PRINTF       args...
+ * BINARY       dst, lhs, op, rhs
+ * NEW          dst, data
+ * </pre>
+ * Operators are stored as INT operands holding their ordinal.
+ */
+public class CompactCode {
+    public static final byte ALLOC = 0;
+    public static final byte READLN = 1;
+    public static final byte PRINTLN = 2;
+    public static final byte ASSIGN = 3;
+    public static final byte RETURN = 4;
+    public static final byte LABEL = 5;
+    public static final byte GOTO = 6;
+    public static final byte CMP = 7;
+    public static final byte FIELD_ASSIGN = 8;
+    public static final byte CALL = 9;
+    public static final byte FIELD_ACCESS = 10;
+    public static final byte UNARY = 11;
+    public static final byte PHI = 12;
+    public static final byte LOAD = 13;
+    public static final byte STORE = 14;
+    public static final byte STACK_ARG = 15;
+    public static final byte PRINTF = 16;
+    public static final byte BINARY = 17;
+    public static final byte NEW = 18;
+
+    // Operand kinds
+    public static final byte VAR = 0; // value is an index into the var table
+    public static final byte INT = 1;
+    public static final byte BOOL = 2; // value is 1 or 0
+    public static final byte STRING = 3; // value is an index into the reference table
+    public static final byte NULL = 4;
+    public static final byte INT_CONST = 5;
+    public static final byte REF = 6; // value is an index into the reference table
+    public static final byte NONE = 7; // an absent var or rval
+
+    private static final Ast.BinaryOp[] BINARY_OPS = Ast.BinaryOp.values();
+    private static final Ast.UnaryOp[] UNARY_OPS = Ast.UnaryOp.values();
+
+    private final Ir3.Var[] vars;
+    private final Object[] refs;
+    private final byte[] ops;
+    private final int[] operandStart; // operands of statement s are at operandStart[s] until operandStart[s + 1]
+    private final byte[] kinds;
+    private final int[] values;
+    private final int[] blockStart; // statements of block b are blockStart[b] until blockStart[b + 1]
+
+    private CompactCode(Encoder encoder) {
+        vars = encoder.vars.toArray(new Ir3.Var[0]);
+        refs = encoder.refs.toArray();
+        ops = Arrays.copyOf(encoder.ops, encoder.stmtCount);
+        operandStart = Arrays.copyOf(encoder.operandStart, encoder.stmtCount + 1);
+        kinds = Arrays.copyOf(encoder.kinds, encoder.operandCount);
+        values = Arrays.copyOf(encoder.values, encoder.operandCount);
+        blockStart = Arrays.copyOf(encoder.blockStart, encoder.blockCount + 1);
+    }
+
+    /**
+     * Encodes the statements of each block, or a single block holding the statements of a method
+     * without blocks.
+     */
+    public static CompactCode encode(List<? extends List<Ir3.Stmt>> blocks) {
+        Encoder encoder = new Encoder();
+        for (List<Ir3.Stmt> block : blocks) {
+            for (Ir3.Stmt stmt : block) {
+                encoder.add(stmt);
+            }
+            encoder.endBlock();
+        }
+        return new CompactCode(encoder);
+    }
+
+    public int size() {
+        return ops.length;
+    }
+
+    public int blockCount() {
+        return blockStart.length - 1;
+    }
+
+    public int blockStart(int b) {
+        return blockStart[b];
+    }
+
+    public int blockEnd(int b) {
+        return blockStart[b + 1];
+    }
+
+    public int op(int s) {
+        return ops[s];
+    }
+
+    public int operandCount(int s) {
+        return operandStart[s + 1] - operandStart[s];
+    }
+
+    public int kind(int s, int k) {
+        return kinds[operandStart[s] + k];
+    }
+
+    public int value(int s, int k) {
+        return values[operandStart[s] + k];
+    }
+
+    /**
+     * Returns operand k of statement s, which must be a VAR.
+     */
+    public Ir3.Var var(int s, int k) {
+        assert kind(s, k) == VAR;
+        return vars[value(s, k)];
+    }
+
+    public Object ref(int s, int k) {
+        assert kind(s, k) == REF || kind(s, k) == STRING;
+        return refs[value(s, k)];
+    }
+
+    /**
+     * Returns the statements of block b, decoded as they are read.
+     */
+    public List<Ir3.Stmt> block(int b) {
+        int start = blockStart[b];
+        int end = blockStart[b + 1];
+        return new AbstractList<Ir3.Stmt>() {
+            @Override
+            public Ir3.Stmt get(int i) {
+                if (i < 0 || i >= end - start) throw new IndexOutOfBoundsException("Index: " + i);
+                return stmt(start + i);
+            }
+
+            @Override
+            public int size() {
+                return end - start;
+            }
+        };
+    }
+
+    public Ir3.Stmt stmt(int s) {
+        switch (ops[s]) {
+            case ALLOC:
+                return new Ir3.AllocStmt(varOrNull(s, 0), value(s, 1));
+            case READLN:
+                return new Ir3.ReadlnStmt(varOrNull(s, 0));
+            case PRINTLN:
+                return new Ir3.PrintlnStmt(rval(s, 0));
+            case ASSIGN:
+                return new Ir3.AssignStmt(varOrNull(s, 0), rval(s, 1));
+            case RETURN:
+                return new Ir3.ReturnStmt(rval(s, 0));
+            case LABEL:
+                return (Ir3.LabelStmt) ref(s, 0);
+            case GOTO:
+                return new Ir3.GotoStmt((Ir3.LabelStmt) ref(s, 0));
+            case CMP:
+                return new Ir3.CmpStmt(BINARY_OPS[value(s, 0)], rval(s, 1), rval(s, 2), (Ir3.LabelStmt) ref(s, 3));
+            case FIELD_ASSIGN:
+                return new Ir3.FieldAssignStatement(varOrNull(s, 0), (String) ref(s, 1), rval(s, 2));
+            case CALL:
+                return new Ir3.CallStmt(varOrNull(s, 0), (Ir3.Method) ref(s, 1), rvals(s, 2));
+            case FIELD_ACCESS:
+                return new Ir3.FieldAccessStatement(varOrNull(s, 0), varOrNull(s, 1), (String) ref(s, 2));
+            case UNARY:
+                return new Ir3.UnaryStmt(varOrNull(s, 0), UNARY_OPS[value(s, 1)], rval(s, 2));
+            case PHI: {
+                Ir3.PhiStmt phi = new Ir3.PhiStmt(varOrNull(s, 0), 0);
+                phi.memory = value(s, 1) != 0;
+                for (int k = 2; k < operandCount(s); k++) {
+                    phi.args.add(varOrNull(s, k));
+                }
+                return phi;
+            }
+            case LOAD:
+                return new Ir3.LoadStmt(varOrNull(s, 0));
+            case STORE:
+                return new Ir3.StoreStmt(varOrNull(s, 0));
+            case STACK_ARG:
+                return new Ir3.StackArgStmt(varOrNull(s, 0), value(s, 1));
+            case PRINTF:
+                return new Ir3.PrintfStmt(rvals(s, 0));
+            case BINARY:
+                return new Ir3.BinaryStmt(varOrNull(s, 0), rval(s, 1), BINARY_OPS[value(s, 2)], rval(s, 3));
+            case NEW:
+                return new Ir3.NewStmt(varOrNull(s, 0), (Ir3.Data) ref(s, 1));
+        }
+        throw new AssertionError("bad opcode " + ops[s]);
+    }
+
+    private Ir3.Var varOrNull(int s, int k) {
+        return kind(s, k) == NONE ? null : var(s, k);
+    }
+
+    private Ir3.Rval rval(int s, int k) {
+        int value = value(s, k);
+        switch (kind(s, k)) {
+            case VAR:
+                return new Ir3.VarRval(vars[value]);
+            case INT:
+                return new Ir3.IntRval(value);
+            case BOOL:
+                return new Ir3.BoolRval(value != 0);
+            case STRING:
+                return new Ir3.StringRval((String) refs[value]);
+            case NULL:
+                return new Ir3.NullRval();
+            case INT_CONST:
+                return new Ir3.IntConst(value);
+            case NONE:
+                return null;
+        }
+        throw new AssertionError("bad rval kind " + kind(s, k));
+    }
+
+    private ArrayList<Ir3.Rval> rvals(int s, int from) {
+        ArrayList<Ir3.Rval> rvals = new ArrayList<>(operandCount(s) - from);
+        for (int k = from; k < operandCount(s); k++) {
+            rvals.add(rval(s, k));
+        }
+        return rvals;
+    }
+
+    private static class Encoder {
+        final ArrayList<Ir3.Var> vars = new ArrayList<>();
+        final IdentityHashMap<Ir3.Var, Integer> varIndex = new IdentityHashMap<>();
+        final ArrayList<Object> refs = new ArrayList<>();
+        final IdentityHashMap<Object, Integer> refIndex = new IdentityHashMap<>();
+        byte[] ops = new byte[64];
+        int[] operandStart = new int[65];
+        int stmtCount;
+        byte[] kinds = new byte[128];
+        int[] values = new int[128];
+        int operandCount;
+        int[] blockStart = new int[9];
+        int blockCount;
+
+        void endBlock() {
+            if (blockCount + 1 == blockStart.length) blockStart = Arrays.copyOf(blockStart, blockStart.length * 2);
+            blockStart[++blockCount] = stmtCount;
+        }
+
+        void add(Ir3.Stmt stmt) {
+            if (stmt instanceof Ir3.AllocStmt) {
+                Ir3.AllocStmt allocStmt = (Ir3.AllocStmt) stmt;
+                begin(ALLOC);
+                var(allocStmt.dst);
+                operand(INT, allocStmt.size);
+            } else if (stmt instanceof Ir3.ReadlnStmt) {
+                begin(READLN);
+                var(((Ir3.ReadlnStmt) stmt).var);
+            } else if (stmt instanceof Ir3.PrintlnStmt) {
+                begin(PRINTLN);
+                rval(((Ir3.PrintlnStmt) stmt).rval);
+            } else if (stmt instanceof Ir3.AssignStmt) {
+                Ir3.AssignStmt assignStmt = (Ir3.AssignStmt) stmt;
+                begin(ASSIGN);
+                var(assignStmt.var);
+                rval(assignStmt.rval);
+            } else if (stmt instanceof Ir3.ReturnStmt) {
+                begin(RETURN);
+                rval(((Ir3.ReturnStmt) stmt).rv);
+            } else if (stmt instanceof Ir3.LabelStmt) {
+                begin(LABEL);
+                ref(stmt);
+            } else if (stmt instanceof Ir3.GotoStmt) {
+                begin(GOTO);
+                ref(((Ir3.GotoStmt) stmt).label);
+            } else if (stmt instanceof Ir3.CmpStmt) {
+                Ir3.CmpStmt cmpStmt = (Ir3.CmpStmt) stmt;
+                begin(CMP);
+                operand(INT, cmpStmt.op.ordinal());
+                rval(cmpStmt.lRv);
+                rval(cmpStmt.rRv);
+                ref(cmpStmt.label);
+            } else if (stmt instanceof Ir3.FieldAssignStatement) {
+                Ir3.FieldAssignStatement fieldAssignStatement = (Ir3.FieldAssignStatement) stmt;
+                begin(FIELD_ASSIGN);
+                var(fieldAssignStatement.target);
+                ref(fieldAssignStatement.field);
+                rval(fieldAssignStatement.v);
+            } else if (stmt instanceof Ir3.CallStmt) {
+                Ir3.CallStmt callStmt = (Ir3.CallStmt) stmt;
+                begin(CALL);
+                var(callStmt.lhs);
+                ref(callStmt.method);
+                for (Ir3.Rval arg : callStmt.args) {
+                    rval(arg);
+                }
+            } else if (stmt instanceof Ir3.FieldAccessStatement) {
+                Ir3.FieldAccessStatement fieldAccessStatement = (Ir3.FieldAccessStatement) stmt;
+                begin(FIELD_ACCESS);
+                var(fieldAccessStatement.dst);
+                var(fieldAccessStatement.target);
+                ref(fieldAccessStatement.field);
+            } else if (stmt instanceof Ir3.UnaryStmt) {
+                Ir3.UnaryStmt unaryStmt = (Ir3.UnaryStmt) stmt;
+                begin(UNARY);
+                var(unaryStmt.dst);
+                operand(INT, unaryStmt.op.ordinal());
+                rval(unaryStmt.rv);
+            } else if (stmt instanceof Ir3.PhiStmt) {
+                Ir3.PhiStmt phiStmt = (Ir3.PhiStmt) stmt;
+                begin(PHI);
+                var(phiStmt.var);
+                operand(BOOL, phiStmt.memory ? 1 : 0);
+                for (Ir3.Var arg : phiStmt.args) {
+                    var(arg);
+                }
+            } else if (stmt instanceof Ir3.LoadStmt) {
+                begin(LOAD);
+                var(((Ir3.LoadStmt) stmt).var);
+            } else if (stmt instanceof Ir3.StoreStmt) {
+                begin(STORE);
+                var(((Ir3.StoreStmt) stmt).var);
+            } else if (stmt instanceof Ir3.StackArgStmt) {
+                Ir3.StackArgStmt stackArgStmt = (Ir3.StackArgStmt) stmt;
+                begin(STACK_ARG);
+                var(stackArgStmt.var);
+                operand(INT, stackArgStmt.loc);
+            } else if (stmt instanceof Ir3.PrintfStmt) {
+                begin(PRINTF);
+                for (Ir3.Rval arg : ((Ir3.PrintfStmt) stmt).args) {
+                    rval(arg);
+                }
+            } else if (stmt instanceof Ir3.BinaryStmt) {
+                Ir3.BinaryStmt binaryStmt = (Ir3.BinaryStmt) stmt;
+                begin(BINARY);
+                var(binaryStmt.dst);
+                rval(binaryStmt.lhs);
+                operand(INT, binaryStmt.op.ordinal());
+                rval(binaryStmt.rhs);
+            } else if (stmt instanceof Ir3.NewStmt) {
+                Ir3.NewStmt newStmt = (Ir3.NewStmt) stmt;
+                begin(NEW);
+                var(newStmt.dst);
+                ref(newStmt.data);
+            } else {
+                throw new AssertionError("cannot encode " + stmt.getClass().getSimpleName());
+            }
+            operandStart[stmtCount] = operandCount;
+        }
+
+        private void begin(byte op) {
+            if (stmtCount + 1 == ops.length) {
+                ops = Arrays.copyOf(ops, ops.length * 2);
+                operandStart = Arrays.copyOf(operandStart, ops.length + 1);
+            }
+            ops[stmtCount] = op;
+            operandStart[stmtCount++] = operandCount;
+        }
+
+        private void operand(byte kind, int value) {
+            if (operandCount == kinds.length) {
+                kinds = Arrays.copyOf(kinds, kinds.length * 2);
+                values = Arrays.copyOf(values, kinds.length);
+            }
+            kinds[operandCount] = kind;
+            values[operandCount++] = value;
+        }
+
+        private void var(Ir3.Var var) {
+            if (var == null) {
+                operand(NONE, 0);
+                return;
+            }
+            Integer index = varIndex.get(var);
+            if (index == null) {
+                index = vars.size();
+                vars.add(var);
+                varIndex.put(var, index);
+            }
+            operand(VAR, index);
+        }
+
+        private int refIndex(Object ref) {
+            Integer index = refIndex.get(ref);
+            if (index == null) {
+                index = refs.size();
+                refs.add(ref);
+                refIndex.put(ref, index);
+            }
+            return index;
+        }
+
+        private void ref(Object ref) {
+            operand(REF, refIndex(ref));
+        }
+
+        private void rval(Ir3.Rval rval) {
+            if (rval == null) {
+                operand(NONE, 0);
+            } else if (rval instanceof Ir3.VarRval) {
+                var(((Ir3.VarRval) rval).var);
+            } else if (rval instanceof Ir3.IntRval) {
+                operand(INT, ((Ir3.IntRval) rval).i);
+            } else if (rval instanceof Ir3.BoolRval) {
+                operand(BOOL, ((Ir3.BoolRval) rval).b ? 1 : 0);
+            } else if (rval instanceof Ir3.StringRval) {
+                operand(STRING, refIndex(((Ir3.StringRval) rval).s));
+            } else if (rval instanceof Ir3.NullRval) {
+                operand(NULL, 0);
+            } else if (rval instanceof Ir3.IntConst) {
+                operand(INT_CONST, ((Ir3.IntConst) rval).val);
+            } else {
+                throw new AssertionError("cannot encode " + rval.getClass().getSimpleName());
+            }
+        }
+    }
+}
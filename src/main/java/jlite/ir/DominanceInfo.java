@@ -1,26 +1,61 @@
 package jlite.ir;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 
+/**
+ * The dominator tree of a method and its dominance frontiers, indexed by Block.index. Blocks that are
+ * not reachable from the entry are in neither.
+ * <p>
+ * Each reachable block is numbered in a preorder walk of the tree, and also records the last number
+ * in its subtree, so dominates() compares two intervals instead of walking up the tree.
+ */
 public class DominanceInfo {
-    public HashMap<Ir3.Block, HashSet<Ir3.Block>> frontier;
-    public HashMap<Ir3.Block, Ir3.Block> idom;
     public ArrayList<Ir3.Block> preorder;
     public ArrayList<Ir3.Block> postorder;
 
-    public DominanceInfo(HashMap<Ir3.Block, Ir3.Block> idom) {
+    private final List<Ir3.Block> blocks;
+    private final int[] idom; // -1 for the entry and unreachable blocks
+    private final int[] enter; // preorder number in the tree, -1 if unreachable
+    private final int[] exit; // the last preorder number in the subtree
+    private final int[] frontierStart;
+    private final int[] frontier;
+
+    public DominanceInfo(List<Ir3.Block> blocks, int[] idom, int[] enter, int[] exit,
+                         int[] frontierStart, int[] frontier) {
+        this.blocks = blocks;
         this.idom = idom;
-        this.frontier = new HashMap<>();
+        this.enter = enter;
+        this.exit = exit;
+        this.frontierStart = frontierStart;
+        this.frontier = frontier;
+    }
+
+    /**
+     * Returns the immediate dominator of block, or null for the entry and unreachable blocks.
+     */
+    public Ir3.Block idom(Ir3.Block block) {
+        int d = idom[block.index];
+        return d < 0 ? null : blocks.get(d);
     }
 
     public boolean dominates(Ir3.Block b1, Ir3.Block b2) {
         assert b1 != null;
         assert b2 != null;
-        while (b2 != null && b2 != b1) {
-            b2 = idom.get(b2);
-        }
-        return b2 == b1;
+        if (b1 == b2) return true;
+        int e1 = enter[b1.index];
+        int e2 = enter[b2.index];
+        return e1 >= 0 && e2 >= 0 && e1 <= e2 && e2 <= exit[b1.index];
+    }
+
+    public int frontierSize(Ir3.Block block) {
+        return frontierStart[block.index + 1] - frontierStart[block.index];
+    }
+
+    /**
+     * Returns the i-th block in the dominance frontier of block.
+     */
+    public Ir3.Block frontier(Ir3.Block block, int i) {
+        return blocks.get(frontier[frontierStart[block.index] + i]);
     }
 }
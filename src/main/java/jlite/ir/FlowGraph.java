@@ -0,0 +1,75 @@
+package jlite.ir;
+
+import java.util.List;
+
+/**
+ * The edges of the CFG of a method, as int arrays indexed by Block.index.
+ * <p>
+ * The successors of block b are succ[succStart[b]] .. succ[succStart[b + 1] - 1], in the order of
+ * b.outgoing, and its predecessors are pred[predStart[b]] .. pred[predStart[b + 1] - 1], in the order
+ * of b.incoming. It is built from the edge lists by FlowPass.createIterators, so it has to be rebuilt
+ * after they change.
+ */
+public class FlowGraph {
+    public final int[] succStart;
+    public final int[] succ;
+    public final int[] predStart;
+    public final int[] pred;
+
+    private FlowGraph(int[] succStart, int[] succ, int[] predStart, int[] pred) {
+        this.succStart = succStart;
+        this.succ = succ;
+        this.predStart = predStart;
+        this.pred = pred;
+    }
+
+    /**
+     * Numbers the blocks by their position in the list, and builds the edge arrays from their edge
+     * lists. Every block the lists refer to must be in blocks.
+     */
+    public static FlowGraph of(List<Ir3.Block> blocks) {
+        int n = blocks.size();
+        for (int b = 0; b < n; b++) {
+            blocks.get(b).index = b;
+        }
+        int[] succStart = new int[n + 1];
+        int[] predStart = new int[n + 1];
+        for (int b = 0; b < n; b++) {
+            Ir3.Block block = blocks.get(b);
+            succStart[b + 1] = succStart[b] + block.outgoing.size();
+            predStart[b + 1] = predStart[b] + block.incoming.size();
+        }
+        int[] succ = new int[succStart[n]];
+        int[] pred = new int[predStart[n]];
+        for (int b = 0; b < n; b++) {
+            Ir3.Block block = blocks.get(b);
+            for (int i = 0; i < block.outgoing.size(); i++) {
+                succ[succStart[b] + i] = block.outgoing.get(i).index;
+            }
+            for (int i = 0; i < block.incoming.size(); i++) {
+                pred[predStart[b] + i] = block.incoming.get(i).index;
+            }
+        }
+        return new FlowGraph(succStart, succ, predStart, pred);
+    }
+
+    public int size() {
+        return succStart.length - 1;
+    }
+
+    public int succCount(int b) {
+        return succStart[b + 1] - succStart[b];
+    }
+
+    public int succ(int b, int i) {
+        return succ[succStart[b] + i];
+    }
+
+    public int predCount(int b) {
+        return predStart[b + 1] - predStart[b];
+    }
+
+    public int pred(int b, int i) {
+        return pred[predStart[b] + i];
+    }
+}
@@ -2,8 +2,9 @@ package jlite.ir;
 
 import jlite.parser.Ast;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class Ir3 {
     private static void indent(StringBuilder sb, int i) {
@@ -13,12 +14,49 @@ public class Ir3 {
         }
     }
 
+    private static void indent(Appendable out, int i) throws IOException {
+        while (i > 0) {
+            out.append("  ");
+            i--;
+        }
+    }
+
+    /**
+     * print(int) renders a node to a String. print(Appendable, int) writes it straight to out; the nodes
+     * that contain others (programs, methods, blocks) override it so that printing a program does not
+     * build a String for every level of nesting.
+     */
     public interface Printable {
         default String print() {
             return this.print(0);
         }
 
         String print(int indent);
+
+        default void print(Appendable out, int indent) throws IOException {
+            out.append(print(indent));
+        }
+    }
+
+    /**
+     * Writes something to an Appendable, such as a node's print(Appendable, int) with its indent bound.
+     */
+    public interface PrintAction {
+        void print(Appendable out) throws IOException;
+    }
+
+    /**
+     * Runs action on a StringBuilder and returns what it wrote. Used by the print(int) and print() methods of
+     * Ir3 and Arm nodes, and for the parts of a dump.
+     */
+    public static String printToString(PrintAction action) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            action.print(sb);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // a StringBuilder does not throw
+        }
+        return sb.toString();
     }
 
     public static class Prog implements Printable {
@@ -32,20 +70,27 @@ public class Ir3 {
 
         @Override
         public String print(int i) {
-            StringBuilder sb = new StringBuilder();
-            indent(sb, i);
-            sb.append("======= CData3 =======\n");
-            for (Data data : datas) {
-                sb.append(data.print(i))
-                        .append("\n\n");
-            }
-            sb.append("======= CMtd3 =======\n");
+            return printToString(out -> print(out, i));
+        }
+
+        @Override
+        public void print(Appendable out, int i) throws IOException {
+            printDatas(out, i);
+            out.append("======= CMtd3 =======\n");
             for (Method method : methods) {
-                sb.append(method.print(i))
-                        .append("\n");
+                method.print(out, i);
+                out.append("\n");
+            }
+            out.append("=====fx== End of IR3 Program =======\n");
+        }
+
+        public void printDatas(Appendable out, int i) throws IOException {
+            indent(out, i);
+            out.append("======= CData3 =======\n");
+            for (Data data : datas) {
+                data.print(out, i);
+                out.append("\n\n");
             }
-            sb.append("=====fx== End of IR3 Program =======\n");
-            return sb.toString();
         }
     }
 
@@ -77,19 +122,22 @@ public class Ir3 {
         }
 
         public String print(int i) {
-            StringBuilder sb = new StringBuilder();
-            indent(sb, i);
-            sb.append("Data3 ")
+            return printToString(out -> print(out, i));
+        }
+
+        @Override
+        public void print(Appendable out, int i) throws IOException {
+            indent(out, i);
+            out.append("Data3 ")
                     .append(cname)
                     .append("{\n");
             i++;
             for (DataField field : fields) {
-                sb.append(field.print(i))
-                        .append("\n");
+                field.print(out, i);
+                out.append("\n");
             }
             i--;
-            sb.append("}");
-            return sb.toString();
+            out.append("}");
         }
     }
 
@@ -100,9 +148,13 @@ public class Ir3 {
         public ArrayList<Block> blocks;
         public ArrayList<Block> blockPreOrder;
         public ArrayList<Block> blockPostOrder;
+        public FlowGraph flow; // the edges of blocks, indexed by Block.index
         public DominanceInfo dominance;
         public ArrayList<Web> webs;
         public LivenessInfo liveness;
+        public int spillCount; // vars spilled by register allocation
+        public int regAllocRebuilds; // interference graph updates after spilling
+        public CompactCode code; // the statements while the method is compacted, see compact()
 
         public String name;
         Ast.Typ retTyp;
@@ -118,50 +170,106 @@ public class Ir3 {
 
         @Override
         public String print(int i) {
-            StringBuilder sb = new StringBuilder();
-            indent(sb, i);
-            sb.append(retTyp.toString())
+            return printToString(out -> print(out, i));
+        }
+
+        @Override
+        public void print(Appendable out, int i) throws IOException {
+            indent(out, i);
+            out.append(retTyp.toString())
                     .append(" ")
                     .append(name)
                     .append("(");
-            StringJoiner joiner = new StringJoiner(", ");
-            for (Var arg : args) {
-                joiner.add(arg.print());
+            for (int a = 0; a < args.size(); a++) {
+                if (a > 0) out.append(", ");
+                args.get(a).print(out, 0);
             }
-            sb.append(joiner.toString());
-            sb.append("){\n");
+            out.append("){\n");
             i++;
             for (Var local : locals) {
-                indent(sb, i);
-                sb.append(String.format("%s %s;\n", local.typ, local.name));
+                indent(out, i);
+                out.append(local.typ.toString())
+                        .append(" ")
+                        .append(local.name)
+                        .append(";\n");
             }
 
             if (blocks != null) {
-                sb.append(printBlocks(i));
+                for (int b = 0; b < blocks.size(); b++) {
+                    blocks.get(b).print(out, i, statements(b));
+                }
+            } else if (code != null) {
+                printStatements(out, i, code.block(0));
             } else {
-                sb.append(printStatements(i));
+                printStatements(out, i);
             }
             i--;
-            sb.append("}\n");
-            return sb.toString();
+            out.append("}\n");
         }
 
-        private String printBlocks(int i) {
+        public String printStatements(int i) {
             StringBuilder sb = new StringBuilder();
-            for (Block b : blocks) {
-                sb.append(b.print(i));
+            try {
+                printStatements(sb, i);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
             return sb.toString();
         }
 
-        public String printStatements(int i) {
-            StringBuilder sb = new StringBuilder();
-            indent(sb, i);
+        private void printStatements(Appendable out, int i) throws IOException {
+            printStatements(out, i, statements);
+        }
+
+        private static void printStatements(Appendable out, int i, List<Stmt> statements) throws IOException {
+            indent(out, i);
             for (Stmt stmt : statements) {
-                sb.append(stmt.print(i))
-                        .append("\n");
+                stmt.print(out, i);
+                out.append("\n");
             }
-            return sb.toString();
+        }
+
+        /**
+         * Replaces the statement objects with a {@link CompactCode}, once no pass needs to change them.
+         * Block structure is kept, and statements can still be read through {@link #statements(int)}.
+         * Analysis results that refer to statement objects (liveness) are dropped.
+         */
+        public void compact() {
+            if (code != null) return;
+            if (blocks == null) {
+                code = CompactCode.encode(Collections.singletonList(statements));
+            } else {
+                List<List<Stmt>> blockStmts = new ArrayList<>(blocks.size());
+                for (Block block : blocks) {
+                    blockStmts.add(block.statements);
+                    block.statements = null;
+                }
+                code = CompactCode.encode(blockStmts);
+            }
+            statements = null;
+            liveness = null;
+        }
+
+        /**
+         * Decodes a compacted method back into statement objects.
+         */
+        public void expand() {
+            if (code == null) return;
+            if (blocks == null) {
+                statements = new ArrayList<>(code.block(0));
+            } else {
+                for (int b = 0; b < blocks.size(); b++) {
+                    blocks.get(b).statements = new ArrayList<>(code.block(b));
+                }
+            }
+            code = null;
+        }
+
+        /**
+         * The statements of blocks.get(b), whether or not the method is compacted.
+         */
+        public List<Stmt> statements(int b) {
+            return code != null ? code.block(b) : blocks.get(b).statements;
         }
     }
 
@@ -170,7 +278,8 @@ public class Ir3 {
         public String name;
         public Web web;
         public boolean spilled = false;
-        public Integer reg = -1;
+        public int reg = -1;
+        public int index = -1; // dense index within its method, assigned by LivePass
 
         public Var(Ast.Typ typ, String name) {
             this.typ = typ;
@@ -191,21 +300,85 @@ public class Ir3 {
         }
     }
 
+    /**
+     * The vars a statement defines and uses can be read by index, without allocating: defCount() and
+     * getDef(i), useCount() and getUse(i). setUse(i, var) replaces a use. getDefs() and getUses() copy
+     * them into a list.
+     */
     public static abstract class Stmt implements Printable {
+        public int defCount() {
+            return 0;
+        }
+
+        public Var getDef(int i) {
+            throw new IndexOutOfBoundsException("def " + i);
+        }
+
+        public int useCount() {
+            return 0;
+        }
+
+        public Var getUse(int i) {
+            return useRval(i).var;
+        }
+
+        public void setUse(int i, Var var) {
+            useRval(i).var = var;
+        }
+
+        /**
+         * The VarRval holding use i, for statements whose uses are the vars among their rvals.
+         */
+        VarRval useRval(int i) {
+            throw new IndexOutOfBoundsException("use " + i);
+        }
+
         public List<Var> getDefs() {
-            return Collections.emptyList();
+            return defCount() == 0 ? Collections.emptyList() : Collections.singletonList(getDef(0));
         }
 
         public List<Var> getUses() {
-            return getRvals().stream()
-                    .filter(rval -> rval instanceof Ir3.VarRval)
-                    .map(rval -> ((VarRval) rval).var)
-                    .collect(Collectors.toList());
+            int n = useCount();
+            if (n == 0) return Collections.emptyList();
+            List<Var> uses = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                uses.add(getUse(i));
+            }
+            return uses;
         }
 
         public abstract List<Rval> getRvals();
 
         public abstract void updateDef(Var newVar);
+
+        static int varCount(Rval rval) {
+            return rval instanceof VarRval ? 1 : 0;
+        }
+
+        static int varCount(List<Rval> rvals) {
+            int n = 0;
+            for (int i = 0; i < rvals.size(); i++) {
+                n += varCount(rvals.get(i));
+            }
+            return n;
+        }
+
+        /**
+         * Returns the i-th VarRval among a and b.
+         */
+        static VarRval nthVarRval(int i, Rval a, Rval b) {
+            if (a instanceof VarRval && i-- == 0) return (VarRval) a;
+            if (b instanceof VarRval && i == 0) return (VarRval) b;
+            throw new IndexOutOfBoundsException("use " + i);
+        }
+
+        static VarRval nthVarRval(int i, List<Rval> rvals) {
+            for (int r = 0; r < rvals.size(); r++) {
+                Rval rval = rvals.get(r);
+                if (rval instanceof VarRval && i-- == 0) return (VarRval) rval;
+            }
+            throw new IndexOutOfBoundsException("use " + i);
+        }
     }
 
     public static class AllocStmt extends Stmt {
@@ -231,8 +404,14 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(dst);
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return dst;
         }
 
         @Override
@@ -264,8 +443,14 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(var);
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return var;
         }
 
         @Override
@@ -287,15 +472,6 @@ public class Ir3 {
             this.rval = rval;
         }
 
-        @Override
-        public List<Var> getUses() {
-            if (rval instanceof Ir3.VarRval) {
-                VarRval varRval = (VarRval) rval;
-                return Arrays.asList(varRval.var);
-            }
-            return Collections.emptyList();
-        }
-
         @Override
         public String print(int i) {
             StringBuilder sb = new StringBuilder();
@@ -306,6 +482,17 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int useCount() {
+            return varCount(rval);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            if (i != 0 || !(rval instanceof VarRval)) throw new IndexOutOfBoundsException("use " + i);
+            return (VarRval) rval;
+        }
+
         @Override
         public List<Rval> getRvals() {
             return Arrays.asList(rval);
@@ -337,8 +524,25 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(var);
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return var;
+        }
+
+        @Override
+        public int useCount() {
+            return varCount(rval);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            if (i != 0 || !(rval instanceof VarRval)) throw new IndexOutOfBoundsException("use " + i);
+            return (VarRval) rval;
         }
 
         @Override
@@ -377,6 +581,17 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int useCount() {
+            return varCount(rv);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            if (i != 0 || !(rv instanceof VarRval)) throw new IndexOutOfBoundsException("use " + i);
+            return (VarRval) rv;
+        }
+
         @Override
         public List<Rval> getRvals() {
             if (rv == null) {
@@ -505,6 +720,16 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int useCount() {
+            return varCount(lRv) + varCount(rRv);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            return nthVarRval(i, lRv, rRv);
+        }
+
         @Override
         public List<Rval> getRvals() {
             return Arrays.asList(lRv, rRv);
@@ -534,14 +759,14 @@ public class Ir3 {
 
         @Override
         public Ast.Typ getTyp() {
-            return new Ast.IntTyp();
+            return Ast.Typ.INT;
         }
     }
 
     public static class IntRval extends Rval {
-        public Integer i;
+        public int i;
 
-        public IntRval(Integer i) {
+        public IntRval(int i) {
             this.i = i;
         }
 
@@ -555,7 +780,7 @@ public class Ir3 {
 
         @Override
         public Ast.Typ getTyp() {
-            return new Ast.IntTyp();
+            return Ast.Typ.INT;
         }
     }
 
@@ -576,7 +801,7 @@ public class Ir3 {
 
         @Override
         public Ast.Typ getTyp() {
-            return new Ast.StringTyp();
+            return Ast.Typ.STRING;
         }
     }
 
@@ -598,7 +823,7 @@ public class Ir3 {
 
         @Override
         public Ast.Typ getTyp() {
-            return new Ast.BoolTyp();
+            return Ast.Typ.BOOL;
         }
     }
 
@@ -649,6 +874,29 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int useCount() {
+            return 1 + varCount(v);
+        }
+
+        @Override
+        public Var getUse(int i) {
+            if (i == 0) return target;
+            if (i != 1 || !(v instanceof VarRval)) throw new IndexOutOfBoundsException("use " + i);
+            return ((VarRval) v).var;
+        }
+
+        @Override
+        public void setUse(int i, Var var) {
+            if (i == 0) {
+                target = var;
+            } else if (i == 1 && v instanceof VarRval) {
+                ((VarRval) v).var = var;
+            } else {
+                throw new IndexOutOfBoundsException("use " + i);
+            }
+        }
+
         @Override
         public List<Rval> getRvals() {
             return Arrays.asList(v);
@@ -699,8 +947,24 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(lhs);
+        public int defCount() {
+            return lhs == null ? 0 : 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0 || lhs == null) throw new IndexOutOfBoundsException("def " + i);
+            return lhs;
+        }
+
+        @Override
+        public int useCount() {
+            return varCount(args);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            return nthVarRval(i, args);
         }
 
         @Override
@@ -740,8 +1004,31 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(dst);
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return dst;
+        }
+
+        @Override
+        public int useCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getUse(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("use " + i);
+            return target;
+        }
+
+        @Override
+        public void setUse(int i, Var var) {
+            if (i != 0) throw new IndexOutOfBoundsException("use " + i);
+            target = var;
         }
 
         @Override
@@ -780,8 +1067,25 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(dst);
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return dst;
+        }
+
+        @Override
+        public int useCount() {
+            return varCount(rv);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            if (i != 0 || !(rv instanceof VarRval)) throw new IndexOutOfBoundsException("use " + i);
+            return (VarRval) rv;
         }
 
         @Override
@@ -798,8 +1102,10 @@ public class Ir3 {
     public static class Block implements Printable {
         public LabelStmt labelStmt;
         public ArrayList<Ir3.Stmt> statements;
+        public ArrayList<PhiStmt> phis = new ArrayList<>(); // run before the statements, in SSA form
         public ArrayList<Block> outgoing = new ArrayList<>();
         public ArrayList<Block> incoming = new ArrayList<>();
+        public int index; // position in method.blocks
         public int preOrderIndex;
         public int postOrderIndex;
 
@@ -808,16 +1114,28 @@ public class Ir3 {
         }
 
         public String print(int i) {
-            StringBuilder sb = new StringBuilder();
-            indent(sb, i);
-            sb.append(labelStmt.print())
-                    .append("\n");
+            return printToString(out -> print(out, i));
+        }
+
+        @Override
+        public void print(Appendable out, int i) throws IOException {
+            print(out, i, statements);
+        }
+
+        void print(Appendable out, int i, List<Stmt> statements) throws IOException {
+            indent(out, i);
+            labelStmt.print(out, 0);
+            out.append("\n");
             i++;
+            for (PhiStmt phi : phis) {
+                phi.print(out, i);
+                out.append("\n");
+            }
             for (Stmt stmt : statements) {
-                sb.append(stmt.print(i)).append("\n");
+                stmt.print(out, i);
+                out.append("\n");
             }
             i--;
-            return sb.toString();
         }
     }
 
@@ -831,7 +1149,7 @@ public class Ir3 {
             this.var = v;
             this.args = new ArrayList<>();
             for (int i = 0; i < size; i++) {
-                this.args.add(new Var(new Ast.StringTyp(), "UNSET"));
+                this.args.add(new Var(Ast.Typ.STRING, "UNSET"));
             }
         }
 
@@ -851,8 +1169,14 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(var);
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return var;
         }
 
         @Override
@@ -888,6 +1212,17 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return var;
+        }
+
         @Override
         public List<Rval> getRvals() {
             return Collections.emptyList();
@@ -898,10 +1233,6 @@ public class Ir3 {
             this.var = newVar;
         }
 
-        @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(var);
-        }
     }
 
     public static class StoreStmt extends Stmt {
@@ -924,6 +1255,23 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int useCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getUse(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("use " + i);
+            return var;
+        }
+
+        @Override
+        public void setUse(int i, Var newVar) {
+            if (i != 0) throw new IndexOutOfBoundsException("use " + i);
+            this.var = newVar;
+        }
+
         @Override
         public List<Rval> getRvals() {
             return Collections.emptyList();
@@ -934,10 +1282,6 @@ public class Ir3 {
             this.var = newVar;
         }
 
-        @Override
-        public List<Var> getUses() {
-            return Arrays.asList(var);
-        }
     }
 
     public static class StackArgStmt extends Stmt {
@@ -962,6 +1306,23 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int useCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getUse(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("use " + i);
+            return var;
+        }
+
+        @Override
+        public void setUse(int i, Var newVar) {
+            if (i != 0) throw new IndexOutOfBoundsException("use " + i);
+            this.var = newVar;
+        }
+
         @Override
         public List<Rval> getRvals() {
             return Collections.emptyList();
@@ -972,10 +1333,6 @@ public class Ir3 {
             return;
         }
 
-        @Override
-        public List<Var> getUses() {
-            return Arrays.asList(var);
-        }
     }
 
     enum PrintfType {
@@ -1005,6 +1362,16 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int useCount() {
+            return varCount(args);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            return nthVarRval(i, args);
+        }
+
         @Override
         public List<Rval> getRvals() {
             return args;
@@ -1016,7 +1383,7 @@ public class Ir3 {
         }
     }
 
-    public class NullRval extends Rval {
+    public static class NullRval extends Rval {
         @Override
         public String print(int indent) {
             return "null";
@@ -1024,7 +1391,7 @@ public class Ir3 {
 
         @Override
         public Ast.Typ getTyp() {
-            return new Ast.NullTyp();
+            return Ast.Typ.NULL;
         }
     }
 
@@ -1058,8 +1425,24 @@ public class Ir3 {
         }
 
         @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(dst);
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return dst;
+        }
+
+        @Override
+        public int useCount() {
+            return varCount(lhs) + varCount(rhs);
+        }
+
+        @Override
+        VarRval useRval(int i) {
+            return nthVarRval(i, lhs, rhs);
         }
 
         @Override
@@ -1082,11 +1465,6 @@ public class Ir3 {
             this.data = data;
         }
 
-        @Override
-        public List<Var> getDefs() {
-            return Arrays.asList(dst);
-        }
-
         @Override
         public String print(int i) {
             StringBuilder sb = new StringBuilder();
@@ -1098,6 +1476,17 @@ public class Ir3 {
             return sb.toString();
         }
 
+        @Override
+        public int defCount() {
+            return 1;
+        }
+
+        @Override
+        public Var getDef(int i) {
+            if (i != 0) throw new IndexOutOfBoundsException("def " + i);
+            return dst;
+        }
+
         @Override
         public List<Rval> getRvals() {
             return Collections.emptyList();
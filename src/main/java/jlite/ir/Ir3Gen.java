@@ -15,7 +15,7 @@ public class Ir3Gen {
     private ArrayList<Ir3.Data> dataList = new ArrayList<>();
     private HashMap<String, Ir3.Data> dataMap = new HashMap<>();
     private ArrayList<Ir3.Method> methods = new ArrayList<>();
-    private HashMap<Ast.MdDecl, Ir3.Method> methodMap = new HashMap<>();
+    private IdentityHashMap<Ast.MdDecl, Ir3.Method> methodMap = new IdentityHashMap<>();
 
     Ir3.Var thisVar; // used to store the current "this"
     private IdentityHashMap<Ast.VarDecl, Ir3.Var> varDeclVarMap;
@@ -75,7 +75,7 @@ public class Ir3Gen {
             ArrayList<Ir3.Var> locals = new ArrayList<>();
 
             // generate args
-            thisVar = new Ir3.Var(new Ast.ClasTyp(clas.cname), "this");
+            thisVar = new Ir3.Var(Ast.ClasTyp.of(clas.cname), "this");
             args.add(thisVar);
             for (Ast.VarDecl arg : mdDecl.args) {
                 Ir3.Var var = new Ir3.Var(arg.type, arg.ident);
@@ -342,7 +342,7 @@ public class Ir3Gen {
                 case AND:
                 case OR: {
                     CondChunk cond = doCond(expr, method);
-                    Ir3.Var v = tempGenerator.gen(new Ast.BoolTyp(), method);
+                    Ir3.Var v = tempGenerator.gen(Ast.Typ.BOOL, method);
                     Ir3.LabelStmt trueLabel = null;
                     Ir3.LabelStmt falseLabel = null;
 
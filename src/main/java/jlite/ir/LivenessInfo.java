@@ -1,14 +1,167 @@
 package jlite.ir;
 
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
 
+/**
+ * Liveness of a method. Live sets are bit vectors over the dense var indices in vars, and are exposed
+ * as read-only Set views.
+ * <p>
+ * Only the sets at block boundaries are stored. Statement-level liveness is recomputed on demand by
+ * scanning a block backwards from its live-out set.
+ */
 public class LivenessInfo {
-    public HashMap<Ir3.Stmt, HashSet<Ir3.Var>> stmtLiveInMap;
-    public HashMap<Ir3.Stmt, HashSet<Ir3.Var>> stmtLiveOutMap;
+    public final ArrayList<Ir3.Var> vars;
+    private final HashMap<Ir3.Block, BitSet> blockLiveInMap;
+    private final HashMap<Ir3.Block, BitSet> blockLiveOutMap;
+    private HashMap<Ir3.Stmt, Ir3.Block> stmtBlockMap; // built on the first statement-level point query
 
-    public LivenessInfo(HashMap<Ir3.Stmt, HashSet<Ir3.Var>> stmtLiveInMap, HashMap<Ir3.Stmt, HashSet<Ir3.Var>> stmtLiveOutMap) {
-        this.stmtLiveInMap = stmtLiveInMap;
-        this.stmtLiveOutMap = stmtLiveOutMap;
+    public LivenessInfo(ArrayList<Ir3.Var> vars, HashMap<Ir3.Block, BitSet> blockLiveInMap, HashMap<Ir3.Block, BitSet> blockLiveOutMap) {
+        this.vars = vars;
+        this.blockLiveInMap = blockLiveInMap;
+        this.blockLiveOutMap = blockLiveOutMap;
+    }
+
+    public Set<Ir3.Var> liveIn(Ir3.Block block) {
+        return new VarSet(blockLiveInMap.get(block));
+    }
+
+    public Set<Ir3.Var> liveOut(Ir3.Block block) {
+        return new VarSet(blockLiveOutMap.get(block));
+    }
+
+    /**
+     * Visits the statements of block from last to first, together with the vars live out of each.
+     * The set passed to the visitor is only valid during the call.
+     */
+    public void scanBackward(Ir3.Block block, BiConsumer<Ir3.Stmt, Set<Ir3.Var>> visitor) {
+        BitSet live = (BitSet) blockLiveOutMap.get(block).clone();
+        VarSet view = new VarSet(live);
+        for (int i = block.statements.size() - 1; i >= 0; i--) {
+            Ir3.Stmt stmt = block.statements.get(i);
+            visitor.accept(stmt, view);
+            step(live, stmt);
+        }
+    }
+
+    public Set<Ir3.Var> liveIn(Ir3.Stmt stmt) {
+        BitSet live = scanTo(stmt);
+        step(live, stmt);
+        return new VarSet(live);
+    }
+
+    public Set<Ir3.Var> liveOut(Ir3.Stmt stmt) {
+        return new VarSet(scanTo(stmt));
+    }
+
+    public boolean isLiveOut(Ir3.Stmt stmt, Ir3.Var var) {
+        return isMember(scanTo(stmt), var);
+    }
+
+    /**
+     * Patches liveness after spill code has been inserted for the spilled vars. A spilled var is loaded
+     * before every use and stored after every def, so it is no longer live across a block boundary, and
+     * the live sets of the other vars do not change. The spilled vars are cleared from each block with a
+     * single mask. Only the statement lookup of the changed blocks is refreshed.
+     */
+    public void removeSpilled(Collection<Ir3.Var> spilled, Collection<Ir3.Block> changedBlocks) {
+        BitSet mask = new BitSet(vars.size());
+        for (Ir3.Var var : spilled) {
+            mask.set(var.index);
+        }
+        for (BitSet liveIn : blockLiveInMap.values()) {
+            liveIn.andNot(mask);
+        }
+        for (BitSet liveOut : blockLiveOutMap.values()) {
+            liveOut.andNot(mask);
+        }
+        if (stmtBlockMap == null) return;
+        for (Ir3.Block block : changedBlocks) {
+            for (Ir3.Stmt stmt : block.statements) {
+                stmtBlockMap.put(stmt, block);
+            }
+        }
+    }
+
+    /**
+     * Turns the set live out of stmt into the set live into it: IN = (OUT - def) U use.
+     */
+    public static void step(BitSet live, Ir3.Stmt stmt) {
+        for (int i = 0; i < stmt.defCount(); i++) {
+            live.clear(stmt.getDef(i).index);
+        }
+        for (int i = 0; i < stmt.useCount(); i++) {
+            live.set(stmt.getUse(i).index);
+        }
+    }
+
+    /**
+     * Returns a copy of the set live out of stmt.
+     */
+    private BitSet scanTo(Ir3.Stmt stmt) {
+        if (stmtBlockMap == null) {
+            stmtBlockMap = new HashMap<>();
+            for (Ir3.Block block : blockLiveOutMap.keySet()) {
+                for (Ir3.Stmt s : block.statements) {
+                    stmtBlockMap.put(s, block);
+                }
+            }
+        }
+        Ir3.Block block = stmtBlockMap.get(stmt);
+        BitSet live = (BitSet) blockLiveOutMap.get(block).clone();
+        for (int i = block.statements.size() - 1; block.statements.get(i) != stmt; i--) {
+            step(live, block.statements.get(i));
+        }
+        return live;
+    }
+
+    private boolean isMember(BitSet bits, Ir3.Var var) {
+        int i = var.index;
+        return i >= 0 && i < vars.size() && vars.get(i) == var && bits.get(i);
+    }
+
+    private class VarSet extends AbstractSet<Ir3.Var> {
+        private final BitSet bits;
+
+        VarSet(BitSet bits) {
+            this.bits = bits;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof Ir3.Var && isMember(bits, (Ir3.Var) o);
+        }
+
+        @Override
+        public int size() {
+            return bits.cardinality();
+        }
+
+        @Override
+        public Iterator<Ir3.Var> iterator() {
+            return new Iterator<Ir3.Var>() {
+                private int next = bits.nextSetBit(0);
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public Ir3.Var next() {
+                    if (next < 0) throw new NoSuchElementException();
+                    Ir3.Var var = vars.get(next);
+                    next = bits.nextSetBit(next + 1);
+                    return var;
+                }
+            };
+        }
     }
 }
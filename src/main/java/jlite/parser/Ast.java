@@ -1,5 +1,6 @@
 package jlite.parser;
 
+import com.google.common.collect.MapMaker;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 
@@ -7,6 +8,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentMap;
 
 public class Ast {
     public static void indent(StringBuilder sb, int i) {
@@ -119,30 +121,33 @@ public class Ast {
         }
     }
 
-    public static abstract class Typ extends Locatable {
+    /**
+     * Types are interned: there is a single instance of each distinct type, so types are compared and
+     * hashed by identity. Instances are only obtained from the constants and factories below, which can be
+     * called from several compilations at once. The factories hold their instances weakly, so the class and
+     * function types of finished compilations do not pile up in a long-running daemon. A type is only
+     * made again once nothing refers to the old instance, so no two live instances are ever equal.
+     */
+    public static abstract class Typ {
+        public static final BoolTyp BOOL = new BoolTyp();
+        public static final IntTyp INT = new IntTyp();
+        public static final StringTyp STRING = new StringTyp();
+        public static final VoidTyp VOID = new VoidTyp();
+        public static final NullTyp NULL = new NullTyp();
+
         String typ;
+
         public abstract boolean isSubTypeOrEquals(Typ o);
     }
 
     public static class BoolTyp extends Typ {
-        public BoolTyp() {
+        private BoolTyp() {
             this.typ = "Bool";
         }
-        @Override
-        public boolean isSubTypeOrEquals(Typ o) {
-            return equals(o);
-        }
 
         @Override
-        public int hashCode() {
-            return getClass().hashCode();
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            return true;
+        public boolean isSubTypeOrEquals(Typ o) {
+            return this == o;
         }
 
         @Override
@@ -152,24 +157,13 @@ public class Ast {
     }
 
     public static class IntTyp extends Typ {
-        public IntTyp() {
+        private IntTyp() {
             this.typ = "Int";
         }
-        @Override
-        public boolean isSubTypeOrEquals(Typ o) {
-            return equals(o);
-        }
-
-        @Override
-        public int hashCode() {
-            return getClass().hashCode();
-        }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            return true;
+        public boolean isSubTypeOrEquals(Typ o) {
+            return this == o;
         }
 
         @Override
@@ -179,24 +173,13 @@ public class Ast {
     }
 
     public static class StringTyp extends Typ {
-        public StringTyp() {
+        private StringTyp() {
             this.typ = "String";
         }
-        @Override
-        public boolean isSubTypeOrEquals(Typ o) {
-            return equals(o);
-        }
 
         @Override
-        public int hashCode() {
-            return getClass().hashCode();
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            return true;
+        public boolean isSubTypeOrEquals(Typ o) {
+            return this == o;
         }
 
         @Override
@@ -206,24 +189,13 @@ public class Ast {
     }
 
     public static class VoidTyp extends Typ {
-        public VoidTyp() {
+        private VoidTyp() {
             this.typ = "Void";
         }
-        @Override
-        public boolean isSubTypeOrEquals(Typ o) {
-            return equals(o);
-        }
 
         @Override
-        public int hashCode() {
-            return getClass().hashCode();
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            return true;
+        public boolean isSubTypeOrEquals(Typ o) {
+            return this == o;
         }
 
         @Override
@@ -233,28 +205,17 @@ public class Ast {
     }
 
     public static class NullTyp extends Typ {
-        public NullTyp() {
+        private NullTyp() {
             this.typ = "Null";
         }
+
         @Override
         public boolean isSubTypeOrEquals(Typ o) {
-            return equals(o) ||
+            return this == o ||
                     o instanceof StringTyp ||
                     o instanceof ClasTyp;
         }
 
-        @Override
-        public int hashCode() {
-            return getClass().hashCode();
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            return true;
-        }
-
         @Override
         public String toString() {
             return "Null";
@@ -262,28 +223,21 @@ public class Ast {
     }
 
     public static class ClasTyp extends Typ {
+        private static final ConcurrentMap<String, ClasTyp> interned = new MapMaker().weakValues().makeMap();
         public final String cname;
 
-        public ClasTyp(String cname) {
+        private ClasTyp(String cname) {
             this.typ = "Class";
             this.cname = cname;
         }
 
-        @Override
-        public boolean isSubTypeOrEquals(Typ o) {
-            return equals(o);
-        }
-
-        @Override
-        public int hashCode() {
-            return getClass().hashCode();
+        public static ClasTyp of(String cname) {
+            return interned.computeIfAbsent(cname, ClasTyp::new);
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            return cname.equals(((ClasTyp) obj).cname);
+        public boolean isSubTypeOrEquals(Typ o) {
+            return this == o;
         }
 
         @Override
@@ -293,41 +247,33 @@ public class Ast {
     }
 
     public static class FuncTyp extends Typ {
+        private static final ConcurrentMap<List<Typ>, FuncTyp> interned = new MapMaker().weakValues().makeMap(); // arg types, then return type
         public final List<Typ> argTyps;
         public final Typ retTyp;
-        public MdDecl mdDecl;
 
-        public FuncTyp(Ast.MdDecl mdDecl) {
-            this.mdDecl = mdDecl;
+        private FuncTyp(List<Typ> argTyps, Typ retTyp) {
             this.typ = "Func";
-            this.argTyps = new ArrayList<>();
-            for (Ast.VarDecl varDecl : mdDecl.args) {
-                this.argTyps.add(varDecl.type);
-            }
-            this.retTyp = mdDecl.retTyp;
-        }
-
-        public FuncTyp(List<Typ> argTyps, Typ retTyp) {
-            this.argTyps = argTyps;
+            this.argTyps = Collections.unmodifiableList(argTyps);
             this.retTyp = retTyp;
         }
 
-        @Override
-        public boolean isSubTypeOrEquals(Typ o) {
-            return equals(o);
+        public static FuncTyp of(List<Typ> argTyps, Typ retTyp) {
+            List<Typ> key = new ArrayList<>(argTyps);
+            key.add(retTyp);
+            return interned.computeIfAbsent(key, k -> new FuncTyp(new ArrayList<>(argTyps), retTyp));
         }
 
-        @Override
-        public int hashCode() {
-            return getClass().hashCode();
+        public static FuncTyp of(MdDecl mdDecl) {
+            List<Typ> argTyps = new ArrayList<>();
+            for (VarDecl varDecl : mdDecl.args) {
+                argTyps.add(varDecl.type);
+            }
+            return of(argTyps, mdDecl.retTyp);
         }
 
         @Override
-        public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (obj == null || getClass() != obj.getClass()) return false;
-            return this.argTyps.equals(((FuncTyp) obj).argTyps) &&
-                    this.retTyp.equals(((FuncTyp) obj).retTyp);
+        public boolean isSubTypeOrEquals(Typ o) {
+            return this == o;
         }
 
         @Override
@@ -0,0 +1,85 @@
+package jlite.parser;
+
+import java.io.CharArrayReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The contents of a source file. The file is memory-mapped and decoded once; the scanner reads from
+ * the decoded chars, and the line index used to print errors is only built when a line is asked for.
+ */
+public class SourceBuffer {
+    public final String fileLoc;
+    private final char[] chars;
+    private final int length;
+    private int[] lineStarts; // start offset of each line, then the offset just past the last one
+
+    public SourceBuffer(String fileLoc, char[] chars, int length) {
+        this.fileLoc = fileLoc;
+        this.chars = chars;
+        this.length = length;
+    }
+
+    public static SourceBuffer read(String fileLoc) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileLoc), StandardOpenOption.READ)) {
+            CharBuffer decoded = Charset.defaultCharset().decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            if (decoded.hasArray() && decoded.arrayOffset() == 0) {
+                return new SourceBuffer(fileLoc, decoded.array(), decoded.limit());
+            }
+            char[] chars = new char[decoded.remaining()];
+            decoded.get(chars);
+            return new SourceBuffer(fileLoc, chars, chars.length);
+        }
+    }
+
+    public Reader reader() {
+        return new CharArrayReader(chars, 0, length);
+    }
+
+    public CharSequence contents() {
+        return CharBuffer.wrap(chars, 0, length);
+    }
+
+    public int lineCount() {
+        return lineStarts().length - 1;
+    }
+
+    /**
+     * Returns line i, counting from 0, without its terminator.
+     */
+    public String line(int i) {
+        int[] starts = lineStarts();
+        int start = starts[i];
+        int end = starts[i + 1];
+        if (end > start && chars[end - 1] == '\n') end--;
+        if (end > start && chars[end - 1] == '\r') end--;
+        return new String(chars, start, end - start);
+    }
+
+    // Lines end at \n, \r or \r\n, as in Files.readAllLines
+    private int[] lineStarts() {
+        if (lineStarts != null) return lineStarts;
+        int[] starts = new int[16];
+        int count = 1;
+        for (int i = 0; i < length; i++) {
+            char c = chars[i];
+            if (c == '\r' && i + 1 < length && chars[i + 1] == '\n') i++;
+            else if (c != '\n' && c != '\r') continue;
+            if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = i + 1;
+        }
+        if (starts[count - 1] != length) { // the last line has no terminator
+            if (count == starts.length) starts = Arrays.copyOf(starts, count * 2);
+            starts[count++] = length;
+        }
+        starts = Arrays.copyOf(starts, count);
+        lineStarts = starts;
+        return starts;
+    }
+}
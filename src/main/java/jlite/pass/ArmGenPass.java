@@ -2,6 +2,7 @@ package jlite.pass;
 
 import com.google.common.collect.Lists;
 import jlite.arm.Arm;
+import jlite.ir.CompactCode;
 import jlite.ir.Ir3;
 import jlite.parser.Ast;
 
@@ -13,6 +14,8 @@ public class ArmGenPass extends Pass {
     private ArrayList<Arm.Block> data = new ArrayList<>();
     private HashSet<String> globals = new HashSet<>();
     private HashMap<Ir3.Block, String> blockLabelMap;
+    private HashMap<Ir3.Block, Integer> blockIndexMap; // position in method.blocks
+    private Ir3.Method method;
     private HashSet<Arm.Reg> calleeRegisters;
     private boolean isMain;
     private HashMap<Ir3.Var, Integer> stackOffsets = new HashMap<>();
@@ -41,6 +44,8 @@ public class ArmGenPass extends Pass {
     }
 
     private void passMeth(Ir3.Method method) {
+        this.method = method;
+        method.compact();
         Arm.Block prologue = new Arm.Block(getMethodLabel(method), new ArrayList<>());
         text.add(prologue);
         prologue.isPrologue = true;
@@ -48,8 +53,10 @@ public class ArmGenPass extends Pass {
         isMain = method.name.equals("main");
 
         blockLabelMap = new HashMap<>();
+        blockIndexMap = new HashMap<>();
         for (Ir3.Block block : method.blocks) {
             blockLabelMap.put(block, labelGenerator.gen());
+            blockIndexMap.put(block, blockIndexMap.size());
         }
 
         // Compute what the callee-saved registers are
@@ -67,24 +74,19 @@ public class ArmGenPass extends Pass {
         calleeRegisters.remove(Arm.Reg.R3);
 
         // Allocate stack
-        HashSet<Ir3.Var> requiresStack = new HashSet<>();
+        HashSet<Ir3.Var> requiresStack = new LinkedHashSet<>(); // ordered, so stack offsets are deterministic
 
         // Arguments are stored onto the stack by the caller.
         // Different function calls will have different number of arguments, but the stack space required is shared.
         int maxArg = -1;
 
-        for (Ir3.Block block : method.blocks) {
-            for (Ir3.Stmt stmt : block.statements) {
-                if (stmt instanceof Ir3.StackArgStmt) {
-                    Ir3.StackArgStmt stackArgStmt = (Ir3.StackArgStmt) stmt;
-                    maxArg = Math.max(maxArg, stackArgStmt.loc);
-                } else if (stmt instanceof Ir3.LoadStmt) {
-                    Ir3.LoadStmt loadStmt = (Ir3.LoadStmt) stmt;
-                    requiresStack.add(loadStmt.var);
-                } else if (stmt instanceof Ir3.StoreStmt) {
-                    Ir3.StoreStmt storeStmt = (Ir3.StoreStmt) stmt;
-                    requiresStack.add(storeStmt.var);
-                }
+        CompactCode code = method.code;
+        for (int s = 0; s < code.size(); s++) {
+            int op = code.op(s);
+            if (op == CompactCode.STACK_ARG) {
+                maxArg = Math.max(maxArg, code.value(s, 1));
+            } else if (op == CompactCode.LOAD || op == CompactCode.STORE) {
+                requiresStack.add(code.var(s, 0));
             }
         }
 
@@ -185,7 +187,7 @@ public class ArmGenPass extends Pass {
 
     private void doBlock(Ir3.Block block) {
         currBlock = new Arm.Block(blockLabelMap.get(block), new ArrayList<>());
-        for (Ir3.Stmt stmt : block.statements) {
+        for (Ir3.Stmt stmt : method.statements(blockIndexMap.get(block))) {
             doStmt(block, stmt);
         }
         text.add(currBlock);
@@ -287,7 +289,7 @@ public class ArmGenPass extends Pass {
         } else if (stmt instanceof Ir3.PrintlnStmt) {
             Ir3.PrintlnStmt printlnStmt = (Ir3.PrintlnStmt) stmt;
             globals.add("printf");
-            if (printlnStmt.rval.getTyp().isSubTypeOrEquals(new Ast.IntTyp())) { //int
+            if (printlnStmt.rval.getTyp().isSubTypeOrEquals(Ast.Typ.INT)) { //int
                 doAssign(Arm.Reg.R0, new Ir3.StringRval("%i"));
                 doAssign(Arm.Reg.R1, printlnStmt.rval);
             } else {
@@ -0,0 +1,120 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Worklist solver for dataflow problems over the CFG of a method.
+ * <p>
+ * Blocks are visited in reverse postorder for forward problems, and in postorder (the reverse
+ * postorder of the reversed CFG) for backward problems. A block is revisited only when the output
+ * of one of the neighbours it reads from has changed. Only blocks reachable from the entry are
+ * visited; the facts of unreachable blocks stay at their initial value.
+ * <p>
+ * Input and output are relative to the direction of the problem: for a backward problem the
+ * input of a block is the fact at its exit, and the output the fact at its entry.
+ */
+public class DataflowSolver<T> {
+    public interface Problem<T> {
+        boolean isForward();
+
+        /**
+         * A fresh lattice value, used for the input and output of every block before its first visit.
+         */
+        T newFact(Ir3.Block block);
+
+        /**
+         * Resets the input of block before the outputs of its neighbours are met into it.
+         * Boundary blocks are given their boundary value here.
+         */
+        void initInput(Ir3.Block block, T input);
+
+        /**
+         * Meets the output of a neighbour into input.
+         */
+        void meet(T input, Ir3.Block neighbour, T neighbourOutput);
+
+        /**
+         * Recomputes output from input, and returns whether output changed.
+         */
+        boolean transfer(Ir3.Block block, T input, T output);
+    }
+
+    private final Problem<T> problem;
+    private final HashMap<Ir3.Block, T> inputs = new HashMap<>();
+    private final HashMap<Ir3.Block, T> outputs = new HashMap<>();
+    public int visits = 0; // number of transfer function applications in this run
+    public int changes = 0; // number of visits that changed the output of a block
+
+    public DataflowSolver(Problem<T> problem) {
+        this.problem = problem;
+    }
+
+    public DataflowSolver<T> solve(Ir3.Method method) {
+        for (Ir3.Block block : method.blocks) {
+            inputs.put(block, problem.newFact(block));
+            outputs.put(block, problem.newFact(block));
+        }
+
+        // order.get(i) is the block with priority i; lower runs first
+        int n = method.blockPostOrder.size();
+        List<Ir3.Block> order = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            order.add(problem.isForward() ? method.blockPostOrder.get(n - 1 - i) : method.blockPostOrder.get(i));
+        }
+
+        BitSet pending = new BitSet(n);
+        pending.set(0, n);
+        int i = pending.nextSetBit(0);
+        while (i >= 0) {
+            pending.clear(i);
+            Ir3.Block block = order.get(i);
+            T input = inputs.get(block);
+            problem.initInput(block, input);
+            for (Ir3.Block neighbour : readsFrom(block)) {
+                problem.meet(input, neighbour, outputs.get(neighbour));
+            }
+
+            visits++;
+            if (problem.transfer(block, input, outputs.get(block))) {
+                changes++;
+                for (Ir3.Block dependent : writesTo(block)) {
+                    if (isReachable(method, dependent)) pending.set(priority(dependent, n));
+                }
+            }
+
+            int next = pending.nextSetBit(i + 1);
+            i = next >= 0 ? next : pending.nextSetBit(0);
+        }
+        return this;
+    }
+
+    public T input(Ir3.Block block) {
+        return inputs.get(block);
+    }
+
+    public T output(Ir3.Block block) {
+        return outputs.get(block);
+    }
+
+    private List<Ir3.Block> readsFrom(Ir3.Block block) {
+        return problem.isForward() ? block.incoming : block.outgoing;
+    }
+
+    private List<Ir3.Block> writesTo(Ir3.Block block) {
+        return problem.isForward() ? block.outgoing : block.incoming;
+    }
+
+    private int priority(Ir3.Block block, int n) {
+        return problem.isForward() ? n - 1 - block.postOrderIndex : block.postOrderIndex;
+    }
+
+    private static boolean isReachable(Ir3.Method method, Ir3.Block block) {
+        int i = block.postOrderIndex;
+        return i < method.blockPostOrder.size() && method.blockPostOrder.get(i) == block;
+    }
+}
@@ -1,124 +1,206 @@
 package jlite.pass;
 
-import com.google.common.collect.Lists;
 import jlite.ir.DominanceInfo;
+import jlite.ir.FlowGraph;
 import jlite.ir.Ir3;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
+import java.util.Arrays;
 
 /**
  * Computes Dominance, and stores it in method.dominance.
  * <p>
- * Uses data-flow analysis:
+ * Immediate dominators are found with Semi-NCA, working on the DFS numbers of the blocks in
+ * method.flow:
+ * https://www.cs.princeton.edu/research/techreps/TR-737-05
+ * Frontiers are found by walking up the tree from the predecessors of each join point, as in
  * https://www.cs.rice.edu/~keith/EMBED/dom.pdf
+ * Nothing recurses, so the depth of the CFG is not limited by the stack.
  */
 public class DominancePass extends Pass {
-    HashMap<Ir3.Block, Ir3.Block> idom = new HashMap<>();
-    private HashMap<Ir3.Block, ArrayList<Ir3.Block>> idomChildren;
-
     public void pass(Ir3.Prog prog) {
         for (Ir3.Method method : prog.methods) {
-            method.dominance = computeDominance(method);
-            computeDomIterators(method);
-            computeFrontier(method);
+            pass(method);
         }
     }
 
-    private void computeDomIterators(Ir3.Method method) {
-        assert method.dominance != null;
-        assert method.blocks != null;
-        idomChildren = new HashMap<>();
-        for (Ir3.Block block : method.blocks) {
-            idomChildren.put(block, new ArrayList<>());
+    public void pass(Ir3.Method method) {
+        FlowGraph flow = method.flow;
+        int n = flow.size();
+        int[] idom = immediateDominators(flow);
+
+        // Children of each block in the tree, in block order
+        int[] childStart = new int[n + 2];
+        for (int b = 0; b < n; b++) {
+            if (idom[b] >= 0) childStart[idom[b] + 2]++;
+        }
+        for (int b = 0; b < n; b++) {
+            childStart[b + 2] += childStart[b + 1];
         }
-        for (Ir3.Block block : method.blocks) {
-            Ir3.Block parent = idom.get(block);
-            if (parent != null)
-                idomChildren.get(parent).add(block);
+        int[] children = new int[childStart[n + 1]];
+        for (int b = 0; b < n; b++) {
+            if (idom[b] >= 0) children[childStart[idom[b] + 1]++] = b;
         }
-        HashSet<Ir3.Block> visited = new HashSet<>();
-        Ir3.Block first = method.blocks.get(0);
 
+        int[] enter = new int[n];
+        int[] exit = new int[n];
+        Arrays.fill(enter, -1);
+        ArrayList<Ir3.Block> preorder = new ArrayList<>();
+        ArrayList<Ir3.Block> postorder = new ArrayList<>();
+        if (n > 0) {
+            int[] stack = new int[n];
+            int[] nextChild = new int[n];
+            int depth = 0;
+            stack[depth++] = 0;
+            enter[0] = preorder.size();
+            preorder.add(method.blocks.get(0));
+            nextChild[0] = childStart[0];
+            while (depth > 0) {
+                int b = stack[depth - 1];
+                if (nextChild[b] < childStart[b + 1]) {
+                    int child = children[nextChild[b]++];
+                    enter[child] = preorder.size();
+                    preorder.add(method.blocks.get(child));
+                    nextChild[child] = childStart[child];
+                    stack[depth++] = child;
+                } else {
+                    depth--;
+                    exit[b] = preorder.size() - 1;
+                    postorder.add(method.blocks.get(b));
+                }
+            }
+        }
 
-        method.dominance.preorder = new ArrayList<>();
-        method.dominance.postorder = new ArrayList<>();
-        dfs(first, visited, method);
+        int[] frontierStart = new int[n + 1];
+        int[] frontier = frontiers(flow, idom, enter, frontierStart);
+        method.dominance = new DominanceInfo(method.blocks, idom, enter, exit, frontierStart, frontier);
+        method.dominance.preorder = preorder;
+        method.dominance.postorder = postorder;
     }
 
-    private void dfs(Ir3.Block block, HashSet<Ir3.Block> visited, Ir3.Method method) {
-        visited.add(block);
-        method.dominance.preorder.add(block);
-        for (Ir3.Block child : idomChildren.get(block)) {
-            if (!visited.contains(child)) {
-                dfs(child, visited, method);
+    /**
+     * Returns the immediate dominator of each block, or -1 for the entry and unreachable blocks.
+     */
+    private int[] immediateDominators(FlowGraph flow) {
+        int n = flow.size();
+        int[] idom = new int[n];
+        Arrays.fill(idom, -1);
+        if (n == 0) return idom;
+
+        // Number the reachable blocks in DFS preorder. From here on, arrays are indexed by that number.
+        int[] number = new int[n];
+        Arrays.fill(number, -1);
+        int[] vertex = new int[n];
+        int[] parent = new int[n];
+        int[] stack = new int[n];
+        int[] nextSucc = new int[n];
+        int count = 0;
+        int depth = 0;
+        number[0] = count;
+        vertex[count++] = 0;
+        stack[depth++] = 0;
+        while (depth > 0) {
+            int b = stack[depth - 1];
+            if (nextSucc[b] < flow.succCount(b)) {
+                int succ = flow.succ(b, nextSucc[b]++);
+                if (number[succ] >= 0) continue;
+                parent[count] = number[b];
+                number[succ] = count;
+                vertex[count++] = succ;
+                stack[depth++] = succ;
+            } else {
+                depth--;
             }
         }
-        method.dominance.postorder.add(block);
-    }
 
-    private void computeFrontier(Ir3.Method method) {
-        for (Ir3.Block block : method.blocks) {
-            method.dominance.frontier.put(block, new HashSet<>());
+        // Semidominators, evaluated over a forest of the vertices processed so far
+        int[] semi = new int[count];
+        int[] label = new int[count];
+        int[] ancestor = new int[count];
+        for (int v = 0; v < count; v++) {
+            semi[v] = v;
+            label[v] = v;
+            ancestor[v] = -1;
         }
-        for (Ir3.Block block : method.blocks) {
-            if (block.incoming.size() < 2) continue;
-            Ir3.Block top = method.dominance.idom.get(block);
-            for (Ir3.Block pred : block.incoming) {
-                Ir3.Block curr = pred;
-                while (curr != top) {
-                    method.dominance.frontier.get(curr).add(block);
-                    curr = method.dominance.idom.get(curr);
-                }
+        for (int w = count - 1; w > 0; w--) {
+            int b = vertex[w];
+            for (int i = 0; i < flow.predCount(b); i++) {
+                int v = number[flow.pred(b, i)];
+                if (v < 0) continue;
+                int u = eval(v, ancestor, label, semi, stack);
+                if (semi[u] < semi[w]) semi[w] = semi[u];
             }
+            ancestor[w] = parent[w];
         }
-    }
 
-    private DominanceInfo computeDominance(Ir3.Method method) {
-        if (method.blocks.isEmpty()) {
-            return new DominanceInfo(idom);
+        // The immediate dominator is the nearest common ancestor of the parent and the semidominator
+        int[] dom = new int[count];
+        for (int w = 1; w < count; w++) {
+            int d = parent[w];
+            while (d > semi[w]) {
+                d = dom[d];
+            }
+            dom[w] = d;
+            idom[vertex[w]] = vertex[d];
         }
+        return idom;
+    }
 
-        Ir3.Block firstBlock = method.blocks.get(0);
-        idom.put(firstBlock, null);
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            List<Ir3.Block> reversePostOrder = Lists.reverse(method.blockPostOrder);
-            for (Ir3.Block block : reversePostOrder) {
-                if (block == firstBlock) continue;
-                Ir3.Block newIdom = null;
-                for (Ir3.Block other : block.incoming) {
-                    if (!idom.containsKey(other)) continue;
-                    if (newIdom == null) newIdom = other;
-                    else newIdom = intersect(other, newIdom);
-                }
-
-                if (!idom.containsKey(block) || idom.get(block) != newIdom) {
-                    idom.put(block, newIdom);
-                    changed = true;
-                }
-            }
+    /**
+     * Returns the vertex with the smallest semidominator on the path from v up to, but not including,
+     * the root of its tree, compressing the path as it goes.
+     */
+    private int eval(int v, int[] ancestor, int[] label, int[] semi, int[] stack) {
+        if (ancestor[v] < 0) return v;
+        int depth = 0;
+        int x = v;
+        while (ancestor[ancestor[x]] >= 0) {
+            stack[depth++] = x;
+            x = ancestor[x];
+        }
+        while (depth > 0) {
+            x = stack[--depth];
+            int a = ancestor[x];
+            if (semi[label[a]] < semi[label[x]]) label[x] = label[a];
+            ancestor[x] = ancestor[a];
         }
-        return new DominanceInfo(idom);
+        return label[v];
     }
 
-    private Ir3.Block intersect(Ir3.Block b1, Ir3.Block b2) {
-        Ir3.Block f1 = b1;
-        Ir3.Block f2 = b2;
-        while (f1 != f2) {
-            if (f2 == null) {
-                f1 = idom.get(f1);
-            } else if (f1 == null) {
-                f2 = idom.get(f2);
-            } else if (f1.postOrderIndex < f2.postOrderIndex) {
-                f1 = idom.get(f1);
-            } else if (f2.postOrderIndex < f1.postOrderIndex) {
-                f2 = idom.get(f2);
+    /**
+     * Fills frontierStart and returns the frontiers of the blocks, in the layout of FlowGraph.succ.
+     * Each predecessor of a join point walks up the tree until it reaches the idom of the join point,
+     * or a block that already has the join point in its frontier.
+     */
+    private int[] frontiers(FlowGraph flow, int[] idom, int[] enter, int[] frontierStart) {
+        int n = flow.size();
+        int[] lastJoin = new int[n]; // the join point last added to the frontier of each block
+        Arrays.fill(lastJoin, -1);
+        int[] pairs = new int[16]; // (block, join point) pairs
+        int size = 0;
+        for (int join = 0; join < n; join++) {
+            if (enter[join] < 0 || flow.predCount(join) < 2) continue;
+            for (int i = 0; i < flow.predCount(join); i++) {
+                int runner = flow.pred(join, i);
+                if (enter[runner] < 0) continue;
+                while (runner != idom[join] && lastJoin[runner] != join) {
+                    lastJoin[runner] = join;
+                    if (size == pairs.length) pairs = Arrays.copyOf(pairs, size * 2);
+                    pairs[size++] = runner;
+                    pairs[size++] = join;
+                    frontierStart[runner + 1]++;
+                    runner = idom[runner];
+                }
             }
         }
-        return f1;
+        for (int b = 0; b < n; b++) {
+            frontierStart[b + 1] += frontierStart[b];
+        }
+        int[] next = Arrays.copyOf(frontierStart, n);
+        int[] frontier = new int[size / 2];
+        for (int p = 0; p < size; p += 2) {
+            frontier[next[pairs[p]]++] = pairs[p + 1];
+        }
+        return frontier;
     }
 }
@@ -1,9 +1,9 @@
 package jlite.pass;
 
+import jlite.ir.FlowGraph;
 import jlite.ir.Ir3;
 
 import java.util.ArrayList;
-import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -11,127 +11,74 @@ import java.util.HashSet;
  * The first three-address instruction of the intermediate code is a leader.
  * Instructions which are targets of jump or conditional jump are leaders.
  * Instructions which immediately follows jump are considered as leaders
+ * <p>
+ * The blocks are built in one walk over the statements after the jump targets are collected, and the
+ * edges in one walk over the blocks, since a jump always ends its block.
  */
 public class FlowPass extends Pass {
-    private int postOrderIndex = 0;
-    private int preOrderIndex = 0;
-
     public void pass(Ir3.Prog prog) {
         for (Ir3.Method method : prog.methods) {
             doMethod(method);
         }
 
-        PassUtils.write("_pass.flowpass", prog);
+        PassUtils.write("flowpass", prog);
     }
 
     public void doMethod(Ir3.Method method) {
+        ArrayList<Ir3.Stmt> statements = method.statements;
+        HashSet<Ir3.LabelStmt> targets = new HashSet<>();
+        for (Ir3.Stmt stmt : statements) {
+            if (stmt instanceof Ir3.JumpStmt) targets.add(((Ir3.JumpStmt) stmt).getLabel());
+        }
+
+        // A label that starts a block is replaced by the label of the block
         ArrayList<Ir3.Block> blocks = new ArrayList<>();
-        BitSet leaders = new BitSet(method.statements.size());
-        ArrayList<Ir3.LabelStmt> usedLabels = new ArrayList<>();
         HashMap<Ir3.LabelStmt, Ir3.Block> labelToBlock = new HashMap<>();
-        leaders.clear();
-
+        Ir3.Block block = null;
         boolean prevIsJump = false;
-
-        for (int i = 0; i < method.statements.size(); i++) {
-            Ir3.Stmt stmt = method.statements.get(i);
-            if (prevIsJump) {
-                leaders.set(i, true);
-            }
-
-            if (stmt instanceof Ir3.JumpStmt) {
-                Ir3.JumpStmt jumpStmt = (Ir3.JumpStmt) stmt;
-                usedLabels.add(jumpStmt.label);
-                prevIsJump = true;
-            } else {
-                prevIsJump = false;
-            }
-        }
-
-        for (int i = 0; i < method.statements.size(); i++) {
-
-            Ir3.Stmt stmt = method.statements.get(i);
-            if (stmt instanceof Ir3.LabelStmt) {
-                Ir3.LabelStmt labelStmt = (Ir3.LabelStmt) stmt;
-                if (usedLabels.contains(labelStmt)) {
-                    leaders.set(i, true);
-                }
-            }
-        }
-
-        leaders.set(0, true); // First statement is a leader
-
-        // Start new block
-        Ir3.Block block = new Ir3.Block();
-        block.statements.add(method.statements.get(0));
-        for (int i = 1; i < method.statements.size(); i++) {
-            if (leaders.get(i)) { // new leader
-                blocks.add(block);
+        for (int i = 0; i < statements.size(); i++) {
+            Ir3.Stmt stmt = statements.get(i);
+            if (i == 0 || prevIsJump || (stmt instanceof Ir3.LabelStmt && targets.contains(stmt))) {
                 block = new Ir3.Block();
-            }
-            block.statements.add(method.statements.get(i));
-        }
-        if (!block.statements.isEmpty()) {
-            blocks.add(block);
-        }
-
-        // Generate labels
-        int count = 0;
-        HashMap<Ir3.LabelStmt, Ir3.LabelStmt> blockLabels = new HashMap<>();
-        for (Ir3.Block b : blocks) {
-            b.labelStmt = new Ir3.LabelStmt(String.format("B%s", count));
-            if (b.statements.get(0) instanceof Ir3.LabelStmt) {
-                blockLabels.put((Ir3.LabelStmt) b.statements.get(0), b.labelStmt);
-                b.statements.remove(0);
-            }
-            labelToBlock.put(b.labelStmt, b);
-            count++;
-        }
-
-        for (Ir3.Block b : blocks) {
-            for (Ir3.Stmt stmt : b.statements) {
-                if (stmt instanceof Ir3.JumpStmt) {
-                    Ir3.JumpStmt jumpStmt = (Ir3.JumpStmt) stmt;
-                    Ir3.LabelStmt labelStmt = blockLabels.get(jumpStmt.getLabel());
-                    assert labelStmt != null;
-                    jumpStmt.setLabel(labelStmt);
+                block.labelStmt = new Ir3.LabelStmt("B" + blocks.size());
+                blocks.add(block);
+                if (stmt instanceof Ir3.LabelStmt) {
+                    labelToBlock.put((Ir3.LabelStmt) stmt, block);
+                    prevIsJump = false;
+                    continue;
                 }
             }
+            block.statements.add(stmt);
+            prevIsJump = stmt instanceof Ir3.JumpStmt;
         }
 
-        // Add edges
-        for (int i = 0; i < blocks.size() - 1; i++) {
+        // Add edges. The last block has none.
+        for (int i = 0; i < blocks.size(); i++) {
             Ir3.Block fromBlock = blocks.get(i);
+            Ir3.Block nextBlock = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
 
             if (fromBlock.statements.isEmpty()) {
-                Ir3.Block toBlock = blocks.get(i + 1);
-                Ir3.GotoStmt gotoStmt = new Ir3.GotoStmt(toBlock.labelStmt);
-                fromBlock.statements.add(gotoStmt);
-                fromBlock.outgoing.add(toBlock);
+                if (nextBlock == null) continue;
+                fromBlock.statements.add(new Ir3.GotoStmt(nextBlock.labelStmt));
+                fromBlock.outgoing.add(nextBlock);
                 continue;
             }
 
             Ir3.Stmt lastStmt = fromBlock.statements.get(fromBlock.statements.size() - 1);
-
-            if (lastStmt instanceof Ir3.ReturnStmt) continue;
-            if (!(lastStmt instanceof Ir3.JumpStmt)) {
-                Ir3.Block toBlock = blocks.get(i + 1);
-                fromBlock.outgoing.add(toBlock);
-                continue;
-            }
-
-            if (lastStmt instanceof Ir3.GotoStmt) {
-                Ir3.GotoStmt gotoStmt = (Ir3.GotoStmt) lastStmt;
-                Ir3.Block toBlock = labelToBlock.get(gotoStmt.label);
-                fromBlock.outgoing.add(toBlock);
-            } else if (lastStmt instanceof Ir3.CmpStmt) {
-                Ir3.CmpStmt cmpStmt = (Ir3.CmpStmt) lastStmt;
-                Ir3.Block trueBlock = labelToBlock.get(cmpStmt.label);
-                Ir3.Block fallThruBlock = blocks.get(i + 1);
-                fromBlock.outgoing.add(trueBlock);
-                fromBlock.outgoing.add(fallThruBlock);
-            } else {
-                continue;
+            if (lastStmt instanceof Ir3.JumpStmt) {
+                Ir3.JumpStmt jumpStmt = (Ir3.JumpStmt) lastStmt;
+                Ir3.Block toBlock = labelToBlock.get(jumpStmt.getLabel());
+                assert toBlock != null;
+                jumpStmt.setLabel(toBlock.labelStmt);
+                if (nextBlock == null) continue;
+                if (lastStmt instanceof Ir3.GotoStmt) {
+                    fromBlock.outgoing.add(toBlock);
+                } else if (lastStmt instanceof Ir3.CmpStmt) {
+                    fromBlock.outgoing.add(toBlock);
+                    fromBlock.outgoing.add(nextBlock);
+                }
+            } else if (!(lastStmt instanceof Ir3.ReturnStmt) && nextBlock != null) {
+                fromBlock.outgoing.add(nextBlock);
             }
         }
 
@@ -145,27 +92,47 @@ public class FlowPass extends Pass {
         createIterators(method);
     }
 
-    private void createIterators(Ir3.Method method) {
+    /**
+     * Rebuilds method.flow from the edge lists, and recomputes the pre-order and post-order of the
+     * blocks reachable from the entry. The depth-first search keeps its own stack, so deeply nested
+     * code cannot overflow the thread's.
+     */
+    public void createIterators(Ir3.Method method) {
         assert method.blocks != null;
-        postOrderIndex = 0;
-        preOrderIndex = 0;
-        method.blockPreOrder = new ArrayList<>();
-        method.blockPostOrder = new ArrayList<>();
-        HashSet<Ir3.Block> visited = new HashSet<>();
-        dfs(method.blocks.get(0), visited, method);
+        FlowGraph flow = FlowGraph.of(method.blocks);
+        method.flow = flow;
+        int n = flow.size();
+        method.blockPreOrder = new ArrayList<>(n);
+        method.blockPostOrder = new ArrayList<>(n);
+        if (n == 0) return;
+
+        boolean[] visited = new boolean[n];
+        int[] stack = new int[n]; // the blocks on the current path
+        int[] nextSucc = new int[n]; // the next successor to try, for each block on the path
+        int depth = 0;
+        visit(method, 0);
+        visited[0] = true;
+        stack[depth++] = 0;
+        while (depth > 0) {
+            int b = stack[depth - 1];
+            if (nextSucc[b] < flow.succCount(b)) {
+                int succ = flow.succ(b, nextSucc[b]++);
+                if (visited[succ]) continue;
+                visit(method, succ);
+                visited[succ] = true;
+                stack[depth++] = succ;
+            } else {
+                depth--;
+                Ir3.Block block = method.blocks.get(b);
+                block.postOrderIndex = method.blockPostOrder.size();
+                method.blockPostOrder.add(block);
+            }
+        }
     }
 
-    private void dfs(Ir3.Block block, HashSet<Ir3.Block> visited, Ir3.Method method) {
-        visited.add(block);
+    private void visit(Ir3.Method method, int b) {
+        Ir3.Block block = method.blocks.get(b);
+        block.preOrderIndex = method.blockPreOrder.size();
         method.blockPreOrder.add(block);
-        block.preOrderIndex = preOrderIndex++;
-
-        for (Ir3.Block b : block.outgoing) {
-            if (!visited.contains(b)) {
-                dfs(b, visited, method);
-            }
-        }
-        method.blockPostOrder.add(block);
-        block.postOrderIndex = postOrderIndex++;
     }
 }
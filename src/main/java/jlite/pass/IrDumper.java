@@ -0,0 +1,140 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the IR after a pass to _pass.&lt;pass&gt; files, for debugging.
+ * <p>
+ * Dumps are off unless enabled with the jlite.dump property: a comma separated list of pass names
+ * (flowpass, deadcodeelim, regalloc) or "all". jlite.dump.methods is a regex that limits the dump to the
+ * methods whose names match it, and jlite.dump.dir is the directory the files go in.
+ * <p>
+ * The IR is rendered on the compiling thread, one method at a time, since the next pass changes it, and the
+ * files are written by a single background thread. A dump does not say which program it is for, so runners
+ * that compile several programs at a time turn dumps off (see
+ * {@link PassUtils#disableDumpsForConcurrentCompiles()}). Each file is truncated the first time it is written
+ * by this JVM, and closed by a shutdown hook after the queued dumps are written.
+ */
+public class IrDumper {
+    public static final IrDumper DISABLED = new IrDumper(new HashSet<>(), null, null);
+
+    private final Set<String> passes; // null to dump every pass
+    private final Pattern methods; // null to dump every method
+    private final File dir;
+    private volatile ExecutorService writer; // set once, under the lock in writer()
+    private final HashMap<String, Writer> files = new HashMap<>(); // only used on the writer thread
+
+    public IrDumper(Set<String> passes, Pattern methods, File dir) {
+        this.passes = passes;
+        this.methods = methods;
+        this.dir = dir;
+    }
+
+    public static IrDumper fromProperties() {
+        String dump = System.getProperty("jlite.dump");
+        if (dump == null || dump.isEmpty()) return DISABLED;
+        Set<String> passes = dump.equals("all") ? null : new HashSet<>(Arrays.asList(dump.split(",")));
+        String methods = System.getProperty("jlite.dump.methods");
+        return new IrDumper(passes, methods == null ? null : Pattern.compile(methods),
+                new File(System.getProperty("jlite.dump.dir", ".")));
+    }
+
+    public boolean isEnabled(String pass) {
+        return passes == null || passes.contains(pass);
+    }
+
+    public void dump(String pass, Ir3.Prog prog) {
+        if (!isEnabled(pass)) return;
+        List<String> parts = new ArrayList<>();
+        parts.add("======= " + pass + " =======\n");
+        if (methods == null) {
+            parts.add(Ir3.printToString(out -> prog.printDatas(out, 0)));
+        }
+        for (Ir3.Method method : prog.methods) {
+            if (methods != null && !methods.matcher(method.name).matches()) continue;
+            parts.add(Ir3.printToString(out -> method.print(out, 0)) + "\n");
+        }
+        writer().execute(() -> append(pass, parts));
+    }
+
+    /**
+     * Waits until every dump queued so far is written.
+     */
+    public void flush() {
+        ExecutorService writer = this.writer;
+        if (writer == null) return;
+        try {
+            writer.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new AssertionError("dump writer failed", e.getCause());
+        }
+    }
+
+    private synchronized ExecutorService writer() {
+        if (writer == null) {
+            ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "ir-dump");
+                thread.setDaemon(true);
+                return thread;
+            });
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                writer.execute(this::closeFiles);
+                writer.shutdown();
+                try {
+                    writer.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+            this.writer = writer;
+        }
+        return writer;
+    }
+
+    private void closeFiles() {
+        for (String pass : files.keySet()) {
+            try {
+                files.get(pass).close();
+            } catch (IOException e) {
+                System.err.println("cannot close _pass." + pass + ": " + e.getMessage());
+            }
+        }
+        files.clear();
+    }
+
+    private void append(String pass, List<String> parts) {
+        try {
+            Writer out = files.get(pass);
+            if (out == null) {
+                dir.mkdirs();
+                out = new FileWriter(new File(dir, "_pass." + pass));
+                files.put(pass, out);
+            }
+            for (String part : parts) {
+                out.write(part);
+            }
+            out.flush();
+        } catch (IOException e) {
+            System.err.println("cannot write _pass." + pass + ": " + e.getMessage());
+        }
+    }
+}
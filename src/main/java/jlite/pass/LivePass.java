@@ -4,24 +4,20 @@ import com.google.common.collect.Lists;
 import jlite.ir.Ir3;
 import jlite.ir.LivenessInfo;
 
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 
 /**
  * Computes liveness information at the basic block level. Used for:
  * 1. Register allocation per block
+ * <p>
+ * Every var of the method is given a dense index, and live sets are bit vectors over those indices
+ * that are updated in place. Block-level liveness is solved as a backward problem by DataflowSolver.
+ * Only the block boundary sets are kept; LivenessInfo derives statement-level sets from them on demand.
  */
 public class LivePass extends Pass {
-    public HashMap<Ir3.Block, HashSet<Ir3.Var>> liveInMap = new HashMap<>();
-    public HashMap<Ir3.Block, HashSet<Ir3.Var>> liveOutMap = new HashMap<>();
-    public HashMap<Ir3.Stmt, HashSet<Ir3.Var>> stmtLiveInMap = new HashMap<>();
-    public HashMap<Ir3.Stmt, HashSet<Ir3.Var>> stmtLiveOutMap = new HashMap<>();
-    public HashMap<Ir3.Block, HashSet<Ir3.Var>> blockUseMap;
-    public HashMap<Ir3.Block, HashSet<Ir3.Var>> blockDefMap;
-    public HashMap<Ir3.Block, HashMap<Ir3.Var, Ir3.Stmt>> blockLastUse = new HashMap<>();
-    Ir3.Method method;
-
     public void pass(Ir3.Prog prog) {
         for (Ir3.Method method : prog.methods) {
             pass(method);
@@ -29,84 +25,130 @@ public class LivePass extends Pass {
     }
 
     public void pass(Ir3.Method method) {
-        this.method = method;
-        initBlockUseDefs();
-        initLives();
-        dataflow();
-        computeStmtLevel();
-        method.liveness = new LivenessInfo(stmtLiveInMap, stmtLiveOutMap);
+        MethodLiveness live = new MethodLiveness(method);
+        live.indexVars();
+        live.initBlockUseDefs();
+        live.dataflow();
+        method.liveness = new LivenessInfo(live.vars, live.blockLiveInMap(), live.blockLiveOutMap());
     }
 
-    private void computeStmtLevel() {
-        for (Ir3.Block block : method.blocks) {
-            List<Ir3.Stmt> reverseOrder = Lists.reverse(block.statements);
-            HashSet<Ir3.Var> currentLiveOut = liveOutMap.get(block);
-            for (Ir3.Stmt stmt : reverseOrder) {
-                stmtLiveOutMap.put(stmt, currentLiveOut);
-                HashSet<Ir3.Var> liveIn = new HashSet<>();
-                liveIn.addAll(currentLiveOut);
-                liveIn.removeAll(stmt.getDefs());
-                liveIn.addAll(stmt.getUses());
-                stmtLiveInMap.put(stmt, liveIn);
-                currentLiveOut = liveIn;
+    // The analysis state of one method, made afresh by each pass(method) call
+    private static class MethodLiveness implements DataflowSolver.Problem<BitSet> {
+        final Ir3.Method method;
+        ArrayList<Ir3.Var> vars = new ArrayList<>();
+        DataflowSolver<BitSet> solver;
+        HashMap<Ir3.Block, BitSet> blockUseMap;
+        HashMap<Ir3.Block, BitSet> blockDefMap;
+        private BitSet scratch;
+
+        MethodLiveness(Ir3.Method method) {
+            this.method = method;
+        }
+
+        /**
+         * Numbers args, then locals, then any other var mentioned by a statement.
+         */
+        private void indexVars() {
+            for (Ir3.Var arg : method.args) {
+                index(arg);
+            }
+            for (Ir3.Var local : method.locals) {
+                index(local);
+            }
+            for (Ir3.Block block : method.blocks) {
+                for (Ir3.Stmt stmt : block.statements) {
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        index(stmt.getDef(i));
+                    }
+                    for (int i = 0; i < stmt.useCount(); i++) {
+                        index(stmt.getUse(i));
+                    }
+                }
             }
-            assert (currentLiveOut == liveInMap.get(block));
         }
-    }
 
-    private void initLives() {
-        for (Ir3.Block block : method.blocks) {
-            liveInMap.put(block, new HashSet<>());
-            liveOutMap.put(block, new HashSet<>());
+        private void index(Ir3.Var var) {
+            if (var == null || isIndexed(var)) return;
+            var.index = vars.size();
+            vars.add(var);
         }
-    }
 
-    private void dataflow() {
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            for (Ir3.Block block : method.blockPostOrder) {
-                HashSet<Ir3.Var> liveIn = liveInMap.get(block);
-                HashSet<Ir3.Var> liveOut = liveOutMap.get(block);
-
-                // OUT[B] = U IN[B]
-                for (Ir3.Block outgoing : block.outgoing) {
-                    liveOut.addAll(liveInMap.get(outgoing));
-                }
+        private boolean isIndexed(Ir3.Var var) {
+            return var.index >= 0 && var.index < vars.size() && vars.get(var.index) == var;
+        }
 
-                // IN[B] = f OUT[B]
-                HashSet<Ir3.Var> newLiveIn = new HashSet<>();
-                newLiveIn.addAll(liveOut);
-                newLiveIn.removeAll(blockDefMap.get(block));
-                newLiveIn.addAll(blockUseMap.get(block));
-                if (!changed && !newLiveIn.equals(liveIn)) changed = true;
-                liveInMap.put(block, newLiveIn);
+        private HashMap<Ir3.Block, BitSet> blockLiveInMap() {
+            HashMap<Ir3.Block, BitSet> map = new HashMap<>();
+            for (Ir3.Block block : method.blocks) {
+                map.put(block, solver.output(block));
             }
+            return map;
         }
-    }
 
-    private void initBlockUseDefs() {
-        blockUseMap = new HashMap<>();
-        blockDefMap = new HashMap<>();
-        for (Ir3.Block block : method.blocks) {
-            HashSet<Ir3.Var> blockUse = new HashSet<>();
-            HashSet<Ir3.Var> blockDef = new HashSet<>();
-            HashMap<Ir3.Var, Ir3.Stmt> blockLastUse = new HashMap<>();
-
-            List<Ir3.Stmt> reverseOrder = Lists.reverse(block.statements);
-            for (Ir3.Stmt stmt : reverseOrder) {
-                for (Ir3.Var def : stmt.getDefs()) {
-                    blockUse.remove(def);
-                }
+        private HashMap<Ir3.Block, BitSet> blockLiveOutMap() {
+            HashMap<Ir3.Block, BitSet> map = new HashMap<>();
+            for (Ir3.Block block : method.blocks) {
+                map.put(block, solver.input(block));
+            }
+            return map;
+        }
+
+        private void dataflow() {
+            scratch = new BitSet(vars.size());
+            solver = new DataflowSolver<>(this).solve(method);
+        }
+
+        @Override
+        public boolean isForward() {
+            return false;
+        }
+
+        @Override
+        public BitSet newFact(Ir3.Block block) {
+            return new BitSet(vars.size());
+        }
+
+        @Override
+        public void initInput(Ir3.Block block, BitSet liveOut) {
+            liveOut.clear();
+        }
+
+        // OUT[B] = U IN[S]
+        @Override
+        public void meet(BitSet liveOut, Ir3.Block successor, BitSet successorLiveIn) {
+            liveOut.or(successorLiveIn);
+        }
+
+        // IN[B] = f OUT[B]
+        @Override
+        public boolean transfer(Ir3.Block block, BitSet liveOut, BitSet liveIn) {
+            scratch.clear();
+            scratch.or(liveOut);
+            scratch.andNot(blockDefMap.get(block));
+            scratch.or(blockUseMap.get(block));
+            if (scratch.equals(liveIn)) return false;
+            liveIn.clear();
+            liveIn.or(scratch);
+            return true;
+        }
+
+        private void initBlockUseDefs() {
+            blockUseMap = new HashMap<>();
+            blockDefMap = new HashMap<>();
+            for (Ir3.Block block : method.blocks) {
+                BitSet blockUse = new BitSet(vars.size());
+                BitSet blockDef = new BitSet(vars.size());
 
-                for (Ir3.Var use : stmt.getUses()) {
-                    if (!blockLastUse.containsKey(use)) blockLastUse.put(use, stmt);
+                List<Ir3.Stmt> reverseOrder = Lists.reverse(block.statements);
+                for (Ir3.Stmt stmt : reverseOrder) {
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        blockDef.set(stmt.getDef(i).index);
+                    }
+                    LivenessInfo.step(blockUse, stmt);
                 }
-                blockUse.addAll(stmt.getUses());
-                blockDef.addAll(stmt.getDefs());
+                blockUseMap.put(block, blockUse);
+                blockDefMap.put(block, blockDef);
             }
-            blockUseMap.put(block, blockUse);
-            blockDefMap.put(block, blockDef);
         }
     }
-}
\ No newline at end of file
+}
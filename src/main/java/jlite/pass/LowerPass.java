@@ -7,38 +7,36 @@ import jlite.parser.Ast;
 import java.util.ArrayList;
 import java.util.HashMap;
 
+/**
+ * Lowers Ir3 into a form amenable to ARM.
+ */
 public class LowerPass extends Pass {
-    ArrayList<Ir3.Stmt> newStmts = new ArrayList<>();
-    private Ir3.Method method;
-    ArrayList<Ir3.Var> stackVars = new ArrayList<>();
-    private TempGenerator tempGenerator = new TempGenerator();
-
     public void pass(Ir3.Prog prog) {
         for (Ir3.Method method : prog.methods) {
             pass(method);
         }
     }
 
-    private void pass(Ir3.Method method) {
-        this.method = method;
-        stackVars = new ArrayList<>();
+    public void pass(Ir3.Method method) {
+        MethodContext ctx = new MethodContext(method);
         for (int i = 4; i < method.args.size(); i++) {
-            stackVars.add(method.args.get(i));
+            ctx.stackVars.add(method.args.get(i));
         }
 
         for (Ir3.Block block : method.blocks) {
-            newStmts = new ArrayList<>();
+            ctx.newStmts = new ArrayList<>();
             for (Ir3.Stmt stmt : block.statements) {
-                passStmt(stmt);
+                passStmt(ctx, stmt);
             }
-            block.statements = newStmts;
+            block.statements = ctx.newStmts;
         }
     }
 
-    private void passStmt(Ir3.Stmt stmt) {
-        for (Ir3.Var use : stmt.getUses()) {
-            if (stackVars.contains(use)) {
-                newStmts.add(new Ir3.LoadStmt(use));
+    private void passStmt(MethodContext ctx, Ir3.Stmt stmt) {
+        for (int i = 0; i < stmt.useCount(); i++) {
+            Ir3.Var use = stmt.getUse(i);
+            if (ctx.stackVars.contains(use)) {
+                ctx.newStmts.add(new Ir3.LoadStmt(use));
             }
         }
 
@@ -50,8 +48,8 @@ public class LowerPass extends Pass {
             for (int i = 0; i < callStmt.args.size(); i++) {
                 Ir3.Rval rv = callStmt.args.get(i);
                 if (rv instanceof Ir3.VarRval) continue;
-                Ir3.Var var = tempGenerator.gen(rv.getTyp());
-                passStmt(new Ir3.AssignStmt(var, rv));
+                Ir3.Var var = ctx.tempGenerator.gen(rv.getTyp());
+                passStmt(ctx, new Ir3.AssignStmt(var, rv));
                 callStmt.args.set(i, new Ir3.VarRval(var));
             }
 
@@ -59,37 +57,37 @@ public class LowerPass extends Pass {
                 // We are not guaranteed that these R0-R3 are restored, so we store them
                 Ir3.VarRval arg = (Ir3.VarRval) callStmt.args.get(i);
                 // Generate a new temp to store it locally
-                Ir3.Var temp = tempGenerator.gen(arg.getTyp());
+                Ir3.Var temp = ctx.tempGenerator.gen(arg.getTyp());
                 argTempMap.put(arg, temp);
-                newStmts.add(new Ir3.AssignStmt(temp, arg));
+                ctx.newStmts.add(new Ir3.AssignStmt(temp, arg));
             }
 
             for (int i = callStmt.args.size() - 1; i >= 4; i--) {
                 Ir3.Rval arg = callStmt.args.get(i);
                 Ir3.Var v;
                 if (!(arg instanceof Ir3.VarRval)) {
-                    v = tempGenerator.gen(arg.getTyp());
-                    passStmt(new Ir3.AssignStmt(v, arg));
+                    v = ctx.tempGenerator.gen(arg.getTyp());
+                    passStmt(ctx, new Ir3.AssignStmt(v, arg));
                 } else {
                     Ir3.VarRval varRval = (Ir3.VarRval) arg;
                     v = varRval.var;
                 }
-                passStmt(new Ir3.StackArgStmt(v, i - 4));
+                passStmt(ctx, new Ir3.StackArgStmt(v, i - 4));
                 callStmt.args.remove(i);
             }
 
             if (callStmt.lhs == null) {
-                callStmt.lhs = tempGenerator.gen(new Ast.VoidTyp());
+                callStmt.lhs = ctx.tempGenerator.gen(Ast.Typ.VOID);
             }
 
-            newStmts.add(callStmt);
+            ctx.newStmts.add(callStmt);
 
             for (int i = 0; i < callStmt.args.size() && i < 4; i++) {
                 // We are not guaranteed that these R0-R3 are restored, so we restore them
                 Ir3.VarRval arg = (Ir3.VarRval) callStmt.args.get(i);
                 // Generate a new temp to store it locally
                 Ir3.Var temp = argTempMap.get(arg);
-                newStmts.add(new Ir3.AssignStmt(arg.var, new Ir3.VarRval(temp)));
+                ctx.newStmts.add(new Ir3.AssignStmt(arg.var, new Ir3.VarRval(temp)));
             }
 
             return;
@@ -102,115 +100,136 @@ public class LowerPass extends Pass {
 //            }
 
             if (!(cmpStmt.lRv instanceof Ir3.VarRval)) {
-                Ir3.Var temp = tempGenerator.gen(cmpStmt.lRv.getTyp());
-                passStmt(new Ir3.AssignStmt(temp, cmpStmt.lRv));
+                Ir3.Var temp = ctx.tempGenerator.gen(cmpStmt.lRv.getTyp());
+                passStmt(ctx, new Ir3.AssignStmt(temp, cmpStmt.lRv));
                 cmpStmt.lRv = new Ir3.VarRval(temp);
             }
 
             if (!Arm.isValidOp2(cmpStmt.rRv) && !(cmpStmt.rRv instanceof Ir3.VarRval)) {
-                Ir3.Var temp = tempGenerator.gen(cmpStmt.rRv.getTyp());
-                passStmt(new Ir3.AssignStmt(temp, cmpStmt.rRv));
+                Ir3.Var temp = ctx.tempGenerator.gen(cmpStmt.rRv.getTyp());
+                passStmt(ctx, new Ir3.AssignStmt(temp, cmpStmt.rRv));
                 cmpStmt.rRv = new Ir3.VarRval(temp);
             }
-            newStmts.add(cmpStmt);
+            ctx.newStmts.add(cmpStmt);
         } else if (stmt instanceof Ir3.PrintlnStmt) {
             Ir3.PrintlnStmt printlnStmt = (Ir3.PrintlnStmt) stmt;
             int numRegs = 1; // str uses R0 only
             HashMap<Ir3.Var, Ir3.Var> tempsMap = new HashMap<>();
             ArrayList<Ir3.Rval> args = new ArrayList<>();
-            if (printlnStmt.rval.getTyp().isSubTypeOrEquals(new Ast.IntTyp())) {
+            if (printlnStmt.rval.getTyp().isSubTypeOrEquals(Ast.Typ.INT)) {
                 numRegs = 2;
                 args.add(new Ir3.StringRval("%i"));
             }
             args.add(printlnStmt.rval);
-            for (int i = 0; i < method.args.size() - 1 && i < numRegs; i++) {
-                Ir3.Var arg = method.args.get(i);
-                Ir3.Var temp = tempGenerator.gen(arg.typ);
+            for (int i = 0; i < ctx.method.args.size() - 1 && i < numRegs; i++) {
+                Ir3.Var arg = ctx.method.args.get(i);
+                Ir3.Var temp = ctx.tempGenerator.gen(arg.typ);
                 tempsMap.put(arg, temp);
-                passStmt(new Ir3.AssignStmt(temp, new Ir3.VarRval(arg)));
+                passStmt(ctx, new Ir3.AssignStmt(temp, new Ir3.VarRval(arg)));
             }
-            newStmts.add(stmt);
-            for (int i = 0; i < method.args.size() - 1 && i < numRegs; i++) {
-                Ir3.Var arg = method.args.get(i);
+            ctx.newStmts.add(stmt);
+            for (int i = 0; i < ctx.method.args.size() - 1 && i < numRegs; i++) {
+                Ir3.Var arg = ctx.method.args.get(i);
                 Ir3.Var temp = tempsMap.get(arg);
-                passStmt(new Ir3.AssignStmt(arg, new Ir3.VarRval(temp)));
+                passStmt(ctx, new Ir3.AssignStmt(arg, new Ir3.VarRval(temp)));
             }
         } else if (stmt instanceof Ir3.UnaryStmt) {
             Ir3.UnaryStmt unaryStmt = (Ir3.UnaryStmt) stmt;
             if (Arm.isConstant(unaryStmt.rv)) {
-                newStmts.add(stmt);
+                ctx.newStmts.add(stmt);
                 return;
             }
             if (!(unaryStmt.rv instanceof Ir3.VarRval)) {
-                Ir3.Var temp = tempGenerator.gen(unaryStmt.rv.getTyp());
-                passStmt(new Ir3.AssignStmt(temp, unaryStmt.rv));
+                Ir3.Var temp = ctx.tempGenerator.gen(unaryStmt.rv.getTyp());
+                passStmt(ctx, new Ir3.AssignStmt(temp, unaryStmt.rv));
                 unaryStmt.rv = new Ir3.VarRval(temp);
             }
-            newStmts.add(stmt);
+            ctx.newStmts.add(stmt);
             return;
         } else if (stmt instanceof Ir3.FieldAssignStatement) {
             Ir3.FieldAssignStatement fieldAssignStatement = (Ir3.FieldAssignStatement) stmt;
             if (!(fieldAssignStatement.v instanceof Ir3.VarRval)) {
-                Ir3.Var temp = tempGenerator.gen(fieldAssignStatement.v.getTyp());
-                passStmt(new Ir3.AssignStmt(temp, fieldAssignStatement.v));
+                Ir3.Var temp = ctx.tempGenerator.gen(fieldAssignStatement.v.getTyp());
+                passStmt(ctx, new Ir3.AssignStmt(temp, fieldAssignStatement.v));
                 fieldAssignStatement.v = new Ir3.VarRval(temp);
                 return;
             }
         } else if (stmt instanceof Ir3.FieldAccessStatement) {
-            newStmts.add(stmt);
+            ctx.newStmts.add(stmt);
             return;
         } else if (stmt instanceof Ir3.BinaryStmt) {
             Ir3.BinaryStmt binaryStmt = (Ir3.BinaryStmt) stmt;
 
             if (binaryStmt.op == Ast.BinaryOp.DIV) throw new AssertionError("Division not supported");
             if (!(binaryStmt.lhs instanceof Ir3.VarRval)) {
-                Ir3.Var temp = tempGenerator.gen(binaryStmt.lhs.getTyp());
-                passStmt(new Ir3.AssignStmt(temp, binaryStmt.lhs));
+                Ir3.Var temp = ctx.tempGenerator.gen(binaryStmt.lhs.getTyp());
+                passStmt(ctx, new Ir3.AssignStmt(temp, binaryStmt.lhs));
                 binaryStmt.lhs = new Ir3.VarRval(temp);
             }
 
             if (!(binaryStmt.rhs instanceof Ir3.VarRval)) {
-                Ir3.Var temp = tempGenerator.gen(binaryStmt.rhs.getTyp());
-                passStmt(new Ir3.AssignStmt(temp, binaryStmt.rhs));
+                Ir3.Var temp = ctx.tempGenerator.gen(binaryStmt.rhs.getTyp());
+                passStmt(ctx, new Ir3.AssignStmt(temp, binaryStmt.rhs));
                 binaryStmt.rhs = new Ir3.VarRval(temp);
             }
-            newStmts.add(stmt);
+            ctx.newStmts.add(stmt);
             return;
         } else if (stmt instanceof Ir3.StackArgStmt) {
-            newStmts.add(stmt);
+            ctx.newStmts.add(stmt);
             return;
         } else if (stmt instanceof Ir3.ReturnStmt) {
-            newStmts.add(stmt);
+            ctx.newStmts.add(stmt);
             return;
         } else if (stmt instanceof Ir3.PrintfStmt) {
-            newStmts.add(stmt);
+            ctx.newStmts.add(stmt);
             return;
         } else if (stmt instanceof Ir3.NewStmt) {
             // Heap allocation uses R0, save first arg if any
             int numRegs = 1;
             HashMap<Ir3.Var, Ir3.Var> tempsMap = new HashMap<>();
             Ir3.NewStmt newStmt = (Ir3.NewStmt) stmt;
-            for (int i = 0; i < method.args.size() - 1 && i < numRegs; i++) {
-                Ir3.Var arg = method.args.get(i);
-                Ir3.Var temp = tempGenerator.gen(arg.typ);
+            for (int i = 0; i < ctx.method.args.size() - 1 && i < numRegs; i++) {
+                Ir3.Var arg = ctx.method.args.get(i);
+                Ir3.Var temp = ctx.tempGenerator.gen(arg.typ);
                 tempsMap.put(arg, temp);
-                passStmt(new Ir3.AssignStmt(temp, new Ir3.VarRval(arg)));
+                passStmt(ctx, new Ir3.AssignStmt(temp, new Ir3.VarRval(arg)));
             }
             int memSize = newStmt.data.fields.size() * 4;
-            newStmts.add(new Ir3.AllocStmt(newStmt.dst, memSize));
-            for (int i = 0; i < method.args.size() - 1 && i < numRegs; i++) {
-                Ir3.Var arg = method.args.get(i);
+            ctx.newStmts.add(new Ir3.AllocStmt(newStmt.dst, memSize));
+            for (int i = 0; i < ctx.method.args.size() - 1 && i < numRegs; i++) {
+                Ir3.Var arg = ctx.method.args.get(i);
                 Ir3.Var temp = tempsMap.get(arg);
-                passStmt(new Ir3.AssignStmt(arg, new Ir3.VarRval(temp)));
+                passStmt(ctx, new Ir3.AssignStmt(arg, new Ir3.VarRval(temp)));
             }
         } else {
-            newStmts.add(stmt);
+            ctx.newStmts.add(stmt);
             return;
         }
     }
 
-    private class TempGenerator {
-        public int counter = 0;
+    // The lowering state of one method, made afresh by each pass(method) call
+    private static class MethodContext {
+        final Ir3.Method method;
+        final ArrayList<Ir3.Var> stackVars = new ArrayList<>();
+        final TempGenerator tempGenerator;
+        ArrayList<Ir3.Stmt> newStmts = new ArrayList<>();
+
+        MethodContext(Ir3.Method method) {
+            this.method = method;
+            this.tempGenerator = new TempGenerator(method);
+        }
+    }
+
+    /**
+     * Temporaries are numbered per method, so the names do not depend on the order methods are lowered in.
+     */
+    private static class TempGenerator {
+        private final Ir3.Method method;
+        private int counter = 0;
+
+        TempGenerator(Ir3.Method method) {
+            this.method = method;
+        }
 
         public Ir3.Var gen(Ast.Typ typ) {
             String name = "%t" + counter++;
@@ -0,0 +1,412 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Translates a method out of SSA form, so code built by SSAPass can go on to LowerPass.
+ * https://hal.inria.fr/inria-00349925 (Boissinot et al., Revisiting Out-of-SSA Translation)
+ * <p>
+ * 1. Split the critical edges into blocks with phis, so the copies of each edge run only on that edge
+ * 2. Replace the phis of each block by a parallel copy at the end of each predecessor, ordered into moves
+ * 3. Coalesce the two sides of each copy where their live ranges do not overlap, and drop the copy
+ * <p>
+ * Dominance and liveness are not valid afterwards, and the method is no longer in SSA form.
+ */
+public class OutOfSSAPass extends Pass {
+    public void pass(Ir3.Prog prog) {
+        for (Ir3.Method method : prog.methods) {
+            pass(method);
+        }
+    }
+
+    public void pass(Ir3.Method method) {
+        assert method.blocks != null;
+        splitCriticalEdges(method);
+        List<Ir3.AssignStmt> copies = insertCopies(method);
+        new FlowPass().createIterators(method);
+        method.dominance = null;
+        method.liveness = null;
+        coalesce(method, copies);
+    }
+
+    /**
+     * Gives each edge from a block with several successors into a block with phis a block of its own,
+     * which jumps to the join point. The new blocks are added at the end, so the others keep their
+     * places. ArmGenPass branches to both successors of a CmpStmt, so a fall-through edge can be split
+     * the same way.
+     */
+    private void splitCriticalEdges(Ir3.Method method) {
+        int n = method.blocks.size();
+        for (int b = 0; b < n; b++) {
+            Ir3.Block join = method.blocks.get(b);
+            if (join.phis.isEmpty()) continue;
+            for (int k = 0; k < join.incoming.size(); k++) {
+                Ir3.Block pred = join.incoming.get(k);
+                if (pred.outgoing.size() < 2) continue;
+                Ir3.Block split = new Ir3.Block();
+                split.labelStmt = new Ir3.LabelStmt(join.labelStmt.label + "_" + k);
+                split.statements.add(new Ir3.GotoStmt(join.labelStmt));
+                split.incoming.add(pred);
+                split.outgoing.add(join);
+
+                // With two edges to join, the earlier one in pred.outgoing is the earlier one in join.incoming
+                int s = pred.outgoing.indexOf(join);
+                pred.outgoing.set(s, split);
+                join.incoming.set(k, split);
+                if (s == 0) {
+                    Ir3.JumpStmt jumpStmt = (Ir3.JumpStmt) pred.statements.get(pred.statements.size() - 1);
+                    jumpStmt.setLabel(split.labelStmt);
+                }
+                method.blocks.add(split);
+            }
+        }
+    }
+
+    /**
+     * Replaces the phis of each block by copies at the end of its predecessors, and returns the copies.
+     * An arg that is not defined anywhere is a value undefined on its edge, and needs no copy.
+     */
+    private List<Ir3.AssignStmt> insertCopies(Ir3.Method method) {
+        HashSet<Ir3.Var> defined = new HashSet<>(method.args);
+        defined.addAll(method.locals);
+        ArrayList<Ir3.AssignStmt> copies = new ArrayList<>();
+        for (Ir3.Block join : method.blocks) {
+            if (join.phis.isEmpty()) continue;
+            for (int k = 0; k < join.incoming.size(); k++) {
+                ArrayList<Ir3.Var> dsts = new ArrayList<>();
+                ArrayList<Ir3.Var> srcs = new ArrayList<>();
+                for (Ir3.PhiStmt phi : join.phis) {
+                    Ir3.Var src = phi.args.get(k);
+                    if (src == phi.var || !defined.contains(src)) continue;
+                    dsts.add(phi.var);
+                    srcs.add(src);
+                }
+                List<Ir3.AssignStmt> moves = sequentialize(method, dsts, srcs);
+
+                // A predecessor has a single successor now, so only a goto can follow the copies
+                Ir3.Block pred = join.incoming.get(k);
+                int at = pred.statements.size();
+                if (at > 0 && pred.statements.get(at - 1) instanceof Ir3.JumpStmt) at--;
+                pred.statements.addAll(at, moves);
+                copies.addAll(moves);
+            }
+            join.phis.clear();
+        }
+        return copies;
+    }
+
+    /**
+     * Orders the parallel copy dsts[i] = srcs[i] into moves. A dst is written once no pending copy still
+     * reads from it, and a value that was moved is read from its new place, so a src can be overwritten
+     * as soon as one copy has taken its value. If only cycles are left, the value of one dst is moved
+     * into a spare var to break its cycle.
+     */
+    private List<Ir3.AssignStmt> sequentialize(Ir3.Method method, List<Ir3.Var> dsts, List<Ir3.Var> srcs) {
+        ArrayList<Ir3.AssignStmt> moves = new ArrayList<>();
+        HashMap<Ir3.Var, Ir3.Var> pending = new HashMap<>(); // the src of each dst not yet written
+        HashMap<Ir3.Var, Ir3.Var> location = new HashMap<>(); // where the value of each src is now
+        for (int i = 0; i < dsts.size(); i++) {
+            location.put(srcs.get(i), srcs.get(i));
+            pending.put(dsts.get(i), srcs.get(i));
+        }
+        ArrayDeque<Ir3.Var> ready = new ArrayDeque<>();
+        for (Ir3.Var dst : dsts) {
+            if (!location.containsKey(dst)) ready.push(dst);
+        }
+
+        ArrayDeque<Ir3.Var> todo = new ArrayDeque<>(dsts);
+        while (!todo.isEmpty()) {
+            while (!ready.isEmpty()) {
+                Ir3.Var dst = ready.pop();
+                Ir3.Var src = pending.remove(dst);
+                Ir3.Var from = location.get(src);
+                moves.add(new Ir3.AssignStmt(dst, new Ir3.VarRval(from)));
+                location.put(src, dst);
+                if (from == src && pending.containsKey(src)) ready.push(src);
+            }
+            Ir3.Var dst = todo.pop();
+            if (!pending.containsKey(dst)) continue;
+
+            // dst is on a cycle, so its value has not been moved yet
+            Ir3.Var spare = new Ir3.Var(dst.typ, "%c" + method.locals.size());
+            method.locals.add(spare);
+            moves.add(new Ir3.AssignStmt(spare, new Ir3.VarRval(dst)));
+            location.put(dst, spare);
+            ready.push(dst);
+        }
+        return moves;
+    }
+
+    /**
+     * Merges the two sides of each copy into one var if they do not interfere, then renames every var
+     * to the var of its class and removes the copies that became self assignments. Only the vars in
+     * copies are numbered, in the order they are met. The classes are a union-find over those numbers,
+     * with the members of each class in a circular list, so checking two classes visits the neighbours
+     * of the smaller one. Two classes that both hold an arg are never merged, since an arg must keep its
+     * own var.
+     */
+    private void coalesce(Ir3.Method method, List<Ir3.AssignStmt> copies) {
+        if (copies.isEmpty()) return;
+        ArrayList<Ir3.Var> vars = new ArrayList<>();
+        for (Ir3.AssignStmt copy : copies) {
+            number(vars, copy.var);
+            number(vars, ((Ir3.VarRval) copy.rval).var);
+        }
+        Interference interference = new Interference(method, vars);
+        int n = vars.size();
+        int[] parent = new int[n];
+        int[] next = new int[n];
+        int[] size = new int[n];
+        Ir3.Var[] rep = new Ir3.Var[n]; // the var a class is renamed to, its arg if it holds one
+        for (int v = 0; v < n; v++) {
+            parent[v] = v;
+            next[v] = v;
+            size[v] = 1;
+            rep[v] = vars.get(v);
+        }
+        HashSet<Ir3.Var> args = new HashSet<>(method.args);
+
+        for (Ir3.AssignStmt copy : copies) {
+            int a = find(parent, copy.var.index);
+            int b = find(parent, ((Ir3.VarRval) copy.rval).var.index);
+            if (a == b || args.contains(rep[a]) && args.contains(rep[b])) continue;
+            if (size[a] < size[b]) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (interferes(interference, parent, next, b, a)) continue;
+            parent[b] = a;
+            size[a] += size[b];
+            int t = next[a];
+            next[a] = next[b];
+            next[b] = t;
+            if (args.contains(rep[b])) rep[a] = rep[b];
+        }
+
+        for (Ir3.Block block : method.blocks) {
+            ArrayList<Ir3.Stmt> kept = new ArrayList<>(block.statements.size());
+            for (Ir3.Stmt stmt : block.statements) {
+                for (int i = 0; i < stmt.useCount(); i++) {
+                    stmt.setUse(i, renamed(vars, parent, rep, stmt.getUse(i)));
+                }
+                for (int i = 0; i < stmt.defCount(); i++) {
+                    stmt.updateDef(renamed(vars, parent, rep, stmt.getDef(i)));
+                }
+                if (isSelfCopy(stmt)) continue;
+                kept.add(stmt);
+            }
+            block.statements = kept;
+        }
+
+        ArrayList<Ir3.Var> locals = new ArrayList<>();
+        for (Ir3.Var local : method.locals) {
+            if (renamed(vars, parent, rep, local) == local) locals.add(local);
+        }
+        method.locals = locals;
+    }
+
+    /**
+     * Whether a member of class small interferes with a member of class big.
+     */
+    private boolean interferes(Interference interference, int[] parent, int[] next, int small, int big) {
+        int v = small;
+        do {
+            for (int i = 0; i < interference.degree[v]; i++) {
+                if (find(parent, interference.adjList[v][i]) == big) return true;
+            }
+            v = next[v];
+        } while (v != small);
+        return false;
+    }
+
+    private static void number(ArrayList<Ir3.Var> vars, Ir3.Var var) {
+        if (varIndex(vars, var) >= 0) return;
+        var.index = vars.size();
+        vars.add(var);
+    }
+
+    private static int varIndex(ArrayList<Ir3.Var> vars, Ir3.Var var) {
+        int i = var.index;
+        return i >= 0 && i < vars.size() && vars.get(i) == var ? i : -1;
+    }
+
+    private static Ir3.Var renamed(ArrayList<Ir3.Var> vars, int[] parent, Ir3.Var[] rep, Ir3.Var var) {
+        int v = varIndex(vars, var);
+        return v < 0 ? var : rep[find(parent, v)];
+    }
+
+    /**
+     * Interference between the vars in copies, by their number. The edges are those of
+     * RegisterInterferenceGraph restricted to these vars: a def interferes with everything live out of
+     * its statement, and the vars live into the entry block form a clique. Each var is only followed
+     * over its own live range, and the edges are kept in adjacency lists, so the cost is in the size of
+     * the live ranges and the edges rather than in the square of the number of vars in the method.
+     */
+    private static class Interference {
+        final int[][] adjList;
+        final int[] degree;
+        private final HashSet<Long> edges = new HashSet<>();
+        private final int n;
+
+        Interference(Ir3.Method method, ArrayList<Ir3.Var> vars) {
+            n = vars.size();
+            adjList = new int[n][];
+            degree = new int[n];
+            int blocks = method.blocks.size();
+
+            // The blocks defining each var, and the blocks using it before any def in them
+            ArrayList<ArrayList<Ir3.Block>> defSites = new ArrayList<>(n);
+            ArrayList<ArrayList<Ir3.Block>> useSites = new ArrayList<>(n);
+            for (int v = 0; v < n; v++) {
+                defSites.add(new ArrayList<>());
+                useSites.add(new ArrayList<>());
+            }
+            int[] definedIn = new int[n];
+            int[] usedIn = new int[n];
+            Arrays.fill(definedIn, -1);
+            Arrays.fill(usedIn, -1);
+            for (Ir3.Block block : method.blocks) {
+                for (Ir3.Stmt stmt : block.statements) {
+                    for (int i = 0; i < stmt.useCount(); i++) {
+                        int v = varIndex(vars, stmt.getUse(i));
+                        if (v < 0 || definedIn[v] == block.index || usedIn[v] == block.index) continue;
+                        usedIn[v] = block.index;
+                        useSites.get(v).add(block);
+                    }
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        int v = varIndex(vars, stmt.getDef(i));
+                        if (v < 0 || definedIn[v] == block.index) continue;
+                        definedIn[v] = block.index;
+                        defSites.get(v).add(block);
+                    }
+                }
+            }
+
+            // The vars live out of each block, walking back from the use sites of each var
+            int[][] liveOut = new int[blocks][];
+            int[] liveOutSize = new int[blocks];
+            int[] liveIn = new int[blocks];
+            int[] defines = new int[blocks];
+            int[] inLiveOut = new int[blocks];
+            Arrays.fill(liveIn, -1);
+            Arrays.fill(defines, -1);
+            Arrays.fill(inLiveOut, -1);
+            ArrayList<Integer> entryLive = new ArrayList<>();
+            ArrayDeque<Ir3.Block> worklist = new ArrayDeque<>();
+            for (int v = 0; v < n; v++) {
+                for (Ir3.Block block : defSites.get(v)) {
+                    defines[block.index] = v;
+                }
+                for (Ir3.Block block : useSites.get(v)) {
+                    liveIn[block.index] = v;
+                    worklist.add(block);
+                }
+                while (!worklist.isEmpty()) {
+                    Ir3.Block block = worklist.poll();
+                    for (Ir3.Block pred : block.incoming) {
+                        int p = pred.index;
+                        if (inLiveOut[p] != v) {
+                            inLiveOut[p] = v;
+                            if (liveOut[p] == null) {
+                                liveOut[p] = new int[4];
+                            } else if (liveOutSize[p] == liveOut[p].length) {
+                                liveOut[p] = Arrays.copyOf(liveOut[p], liveOutSize[p] * 2);
+                            }
+                            liveOut[p][liveOutSize[p]++] = v;
+                        }
+                        if (liveIn[p] == v || defines[p] == v) continue;
+                        liveIn[p] = v;
+                        worklist.add(pred);
+                    }
+                }
+                if (blocks > 0 && liveIn[0] == v) entryLive.add(v);
+            }
+
+            for (int i = 0; i < entryLive.size(); i++) {
+                for (int j = i + 1; j < entryLive.size(); j++) {
+                    addEdge(entryLive.get(i), entryLive.get(j));
+                }
+            }
+
+            // Scan each block backward with the set of live vars, as a dense list and a position in it
+            int[] live = new int[n];
+            int[] position = new int[n];
+            Arrays.fill(position, -1);
+            for (Ir3.Block block : method.blocks) {
+                int size = 0;
+                for (int i = 0; i < liveOutSize[block.index]; i++) {
+                    int v = liveOut[block.index][i];
+                    position[v] = size;
+                    live[size++] = v;
+                }
+                for (int s = block.statements.size() - 1; s >= 0; s--) {
+                    Ir3.Stmt stmt = block.statements.get(s);
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        int d = varIndex(vars, stmt.getDef(i));
+                        if (d < 0) continue;
+                        for (int j = 0; j < size; j++) {
+                            addEdge(d, live[j]);
+                        }
+                    }
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        int d = varIndex(vars, stmt.getDef(i));
+                        if (d < 0 || position[d] < 0) continue;
+                        int last = live[--size];
+                        live[position[d]] = last;
+                        position[last] = position[d];
+                        position[d] = -1;
+                    }
+                    for (int i = 0; i < stmt.useCount(); i++) {
+                        int u = varIndex(vars, stmt.getUse(i));
+                        if (u < 0 || position[u] >= 0) continue;
+                        position[u] = size;
+                        live[size++] = u;
+                    }
+                }
+                for (int i = 0; i < size; i++) {
+                    position[live[i]] = -1;
+                }
+            }
+        }
+
+        private void addEdge(int a, int b) {
+            if (a == b) return;
+            long key = a < b ? (long) a * n + b : (long) b * n + a;
+            if (!edges.add(key)) return;
+            addNeighbour(a, b);
+            addNeighbour(b, a);
+        }
+
+        private void addNeighbour(int node, int neighbour) {
+            int[] neighbours = adjList[node];
+            if (neighbours == null) {
+                neighbours = adjList[node] = new int[4];
+            } else if (degree[node] == neighbours.length) {
+                neighbours = adjList[node] = Arrays.copyOf(neighbours, neighbours.length * 2);
+            }
+            neighbours[degree[node]++] = neighbour;
+        }
+    }
+
+    private static int find(int[] parent, int v) {
+        while (parent[v] != v) {
+            parent[v] = parent[parent[v]];
+            v = parent[v];
+        }
+        return v;
+    }
+
+    private static boolean isSelfCopy(Ir3.Stmt stmt) {
+        if (!(stmt instanceof Ir3.AssignStmt)) return false;
+        Ir3.AssignStmt assignStmt = (Ir3.AssignStmt) stmt;
+        return assignStmt.rval instanceof Ir3.VarRval && ((Ir3.VarRval) assignStmt.rval).var == assignStmt.var;
+    }
+}
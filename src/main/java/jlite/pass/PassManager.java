@@ -3,11 +3,56 @@ package jlite.pass;
 import jlite.ir.Ir3;
 import jlite.pass.optimizations.DeadCodeElimPass;
 
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs the backend passes over an Ir3 program.
+ * <p>
+ * With a parallelism of 1, each pass is run over the whole program before the next one starts. Otherwise
+ * the per-method pipeline (flow, lower, dead code, liveness, register allocation) is run for every method
+ * on a fork-join pool. Every pass keeps its per-method state in objects made for the method it is given,
+ * and only touches that method, so methods can go through the passes concurrently and both modes produce
+ * the same program. Only the final regalloc dump (see {@link IrDumper}) is written in parallel mode.
+ * <p>
+ * Each method is compacted (see {@link Ir3.Method#compact()}) once register allocation is done with it, so
+ * finished methods wait for code generation in packed arrays rather than as statement objects.
+ * <p>
+ * With ssa set, each method is put into SSA form after flow, and translated out of it again (see
+ * {@link OutOfSSAPass}) before lowering, so the passes in between can work on SSA.
+ */
 public class PassManager {
+    private static final int SEQUENTIAL_THRESHOLD = 4;
+    private final int parallelism;
+    private final boolean ssa;
+
+    public PassManager() {
+        this(1);
+    }
+
+    public PassManager(int parallelism) {
+        this(parallelism, false);
+    }
+
+    public PassManager(int parallelism, boolean ssa) {
+        this.parallelism = parallelism;
+        this.ssa = ssa;
+    }
 
     public void run(Ir3.Prog ir3, boolean optimize) {
+        if (parallelism > 1) {
+            runParallel(ir3, optimize);
+            return;
+        }
+
         FlowPass flowPass = new FlowPass();
         flowPass.pass(ir3); // Basic Block and CFG Construction
+        if (ssa) {
+            new DominancePass().pass(ir3);
+            new SSAPass().pass(ir3);
+            new OutOfSSAPass().pass(ir3);
+        }
         LowerPass lowerPass = new LowerPass();
         lowerPass.pass(ir3);
 
@@ -19,5 +64,82 @@ public class PassManager {
         livePass.pass(ir3);
         RegAllocPass regAllocPass = new RegAllocPass();
         regAllocPass.pass(ir3);
+        for (Ir3.Method method : ir3.methods) {
+            method.compact();
+        }
+    }
+
+    private void runParallel(Ir3.Prog ir3, boolean optimize) {
+        MethodPipeline pipeline = new MethodPipeline(optimize, ssa);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new PipelineTask(pipeline, ir3.methods, 0, ir3.methods.size()));
+        } finally {
+            pool.shutdown();
+        }
+        PassUtils.write("regalloc", ir3);
+    }
+
+    /**
+     * The passes run on a single method, in the same order as the sequential pipeline.
+     * The pass instances are stateless and shared by all workers, except SSAPass, which keeps the
+     * renaming state of a method and is made for each one.
+     */
+    private static class MethodPipeline {
+        private final boolean optimize;
+        private final boolean ssa;
+        private final FlowPass flowPass = new FlowPass();
+        private final DominancePass dominancePass = new DominancePass();
+        private final OutOfSSAPass outOfSSAPass = new OutOfSSAPass();
+        private final LowerPass lowerPass = new LowerPass();
+        private final DeadCodeElimPass deadCodeElimPass = new DeadCodeElimPass();
+        private final LivePass livePass = new LivePass();
+        private final RegAllocPass regAllocPass = new RegAllocPass();
+
+        MethodPipeline(boolean optimize, boolean ssa) {
+            this.optimize = optimize;
+            this.ssa = ssa;
+        }
+
+        void run(Ir3.Method method) {
+            flowPass.doMethod(method);
+            if (ssa) {
+                dominancePass.pass(method);
+                new SSAPass().pass(method);
+                outOfSSAPass.pass(method);
+            }
+            lowerPass.pass(method);
+            if (optimize) deadCodeElimPass.pass(method);
+            livePass.pass(method);
+            regAllocPass.pass(method);
+            method.compact();
+        }
+    }
+
+    private static class PipelineTask extends RecursiveAction {
+        private final MethodPipeline pipeline;
+        private final List<Ir3.Method> methods;
+        private final int from;
+        private final int to;
+
+        PipelineTask(MethodPipeline pipeline, List<Ir3.Method> methods, int from, int to) {
+            this.pipeline = pipeline;
+            this.methods = methods;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                for (int i = from; i < to; i++) {
+                    pipeline.run(methods.get(i));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PipelineTask(pipeline, methods, from, mid),
+                    new PipelineTask(pipeline, methods, mid, to));
+        }
     }
 }
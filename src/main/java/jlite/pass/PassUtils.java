@@ -2,15 +2,31 @@ package jlite.pass;
 
 import jlite.ir.Ir3;
 
-import java.io.FileNotFoundException;
-import java.io.PrintWriter;
-
 public class PassUtils {
-    public static void write(String filename, Ir3.Prog prog) {
-        try (PrintWriter out = new PrintWriter(filename)) {
-            out.println(prog.print());
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
+    private static volatile IrDumper dumper = IrDumper.fromProperties();
+
+    public static void setDumper(IrDumper dumper) {
+        PassUtils.dumper = dumper;
+    }
+
+    public static IrDumper getDumper() {
+        return dumper;
+    }
+
+    /**
+     * Turns dumps off, for runners that can compile several programs at a time. Every compile dumps to the
+     * same _pass files, and nothing in a dump says which program it came from.
+     */
+    public static void disableDumpsForConcurrentCompiles() {
+        if (dumper == IrDumper.DISABLED) return;
+        System.err.println("IR dumps are off when more than one program can be compiled at a time");
+        dumper = IrDumper.DISABLED;
+    }
+
+    /**
+     * Dumps the program after the named pass, if dumps are enabled for it.
+     */
+    public static void write(String pass, Ir3.Prog prog) {
+        dumper.dump(pass, prog);
     }
 }
@@ -2,15 +2,15 @@ package jlite.pass;
 
 import jlite.ir.Ir3;
 
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Stack;
 
 /**
  * Allocates registers to each var using graph colouring. Depends on liveness information.
+ * The number of spilled vars and graph rebuilds is recorded on each method.
  */
 public class RegAllocPass extends Pass {
-    Ir3.Method method;
-    RegisterInterferenceGraph rig;
     Integer TOTAL_REG_COUNT = 12;
     Integer ARG_REGISTER_COUNT = 4;
 
@@ -18,23 +18,50 @@ public class RegAllocPass extends Pass {
         for (Ir3.Method method : prog.methods) {
             pass(method);
         }
-        PassUtils.write("_pass.regalloc", prog);
+        PassUtils.write("regalloc", prog);
     }
 
-    private void pass(Ir3.Method method) {
-        this.method = method;
+    /**
+     * Colours the method in rounds. Every var that cannot be coloured in a round is spilled, and
+     * liveness and the interference graph are patched for the spill code before the next round.
+     */
+    public void pass(Ir3.Method method) {
         LivePass livePass = new LivePass();
         livePass.pass(method);
-        rig = new RegisterInterferenceGraph(method);
-        preColor(method);
-        Stack<Ir3.Var> processingOrder = rig.getProcessingOrder(TOTAL_REG_COUNT);
-        for (int i = 0; i < ARG_REGISTER_COUNT && i < method.args.size(); i++) {
-            Ir3.Var arg = method.args.get(i);
-            arg.reg = i;
-        }
-        while (!processingOrder.empty()) {
-            Ir3.Var toColor = processingOrder.pop();
-            if (toColor.reg < 0) color(toColor);
+        RegisterInterferenceGraph rig = new RegisterInterferenceGraph(method);
+        List<Ir3.Var> toSpill = new ArrayList<>();
+        while (true) {
+            for (Ir3.Var var : method.liveness.vars) {
+                var.reg = -1;
+            }
+            preColor(method);
+            Stack<Ir3.Var> processingOrder = rig.getProcessingOrder(TOTAL_REG_COUNT);
+            for (int i = 0; i < ARG_REGISTER_COUNT && i < method.args.size(); i++) {
+                Ir3.Var arg = method.args.get(i);
+                arg.reg = i;
+            }
+            while (!processingOrder.empty()) {
+                Ir3.Var toColor = processingOrder.pop();
+                if (toColor.reg < 0 && !color(rig, toColor)) toSpill.add(toColor);
+            }
+            if (toSpill.isEmpty()) return;
+
+            // Spilling a var again frees nothing, but spilling the others in the round can make room for it
+            boolean allSpilled = true;
+            for (Ir3.Var var : toSpill) {
+                allSpilled &= var.spilled;
+            }
+            if (allSpilled) throw new AssertionError("cannot colour spilled var " + toSpill.get(0).name + " in " + method.name);
+            toSpill.removeIf(var -> var.spilled);
+            for (Ir3.Var var : toSpill) {
+                var.spilled = true;
+            }
+            List<Ir3.Block> changedBlocks = spill(method, toSpill);
+            method.liveness.removeSpilled(toSpill, changedBlocks);
+            rig.updateSpilled(method, toSpill, changedBlocks);
+            method.spillCount += toSpill.size();
+            method.regAllocRebuilds++;
+            toSpill.clear();
         }
     }
 
@@ -54,10 +81,12 @@ public class RegAllocPass extends Pass {
         }
     }
 
-    private void color(Ir3.Var toColor) {
+    /**
+     * Gives toColor the lowest register not used by its neighbours. Returns false if there is none.
+     */
+    private boolean color(RegisterInterferenceGraph rig, Ir3.Var toColor) {
         boolean[] availableColors = new boolean[TOTAL_REG_COUNT];
-        HashSet<Ir3.Var> neighbours = rig.getNeighbours(toColor);
-        for (Ir3.Var neighbour : neighbours) {
+        for (Ir3.Var neighbour : rig.getNeighbours(toColor)) {
             if (neighbour.reg >= 0) availableColors[neighbour.reg] = true;
         }
         int availableColor = -1;
@@ -67,30 +96,66 @@ public class RegAllocPass extends Pass {
                 break;
             }
         }
-        if (availableColor != -1) {
-            toColor.reg = availableColor;
-        } else {
-            toColor.spilled = true;
-            spill(toColor);
-            pass(method);
-        }
+        if (availableColor == -1) return false;
+        toColor.reg = availableColor;
+        return true;
     }
 
-    private void spill(Ir3.Var toSpill) {
+    /**
+     * Inserts a load before every use and a store after every def of the vars in toSpill, in a single
+     * walk over the method. Returns the blocks that were changed.
+     */
+    private List<Ir3.Block> spill(Ir3.Method method, List<Ir3.Var> toSpill) {
+        boolean[] spilling = new boolean[method.liveness.vars.size()];
+        for (Ir3.Var var : toSpill) {
+            spilling[var.index] = true;
+        }
+
+        List<Ir3.Block> changedBlocks = new ArrayList<>();
         for (Ir3.Block block : method.blocks) {
+            ArrayList<Ir3.Stmt> newStmts = null;
             for (int i = 0; i < block.statements.size(); i++) {
                 Ir3.Stmt stmt = block.statements.get(i);
-
-                if (stmt.getUses().contains(toSpill)) {
-                    Ir3.LoadStmt loadStmt = new Ir3.LoadStmt(toSpill);
-                    block.statements.add(i, loadStmt);
-                    i++;
+                if (newStmts == null) {
+                    if (!spillsAny(stmt, spilling)) continue;
+                    newStmts = new ArrayList<>(block.statements.subList(0, i));
+                }
+                for (int u = 0; u < stmt.useCount(); u++) {
+                    Ir3.Var var = stmt.getUse(u);
+                    if (spilling[var.index] && firstUse(stmt, u)) newStmts.add(new Ir3.LoadStmt(var));
                 }
-                if (stmt.getDefs().contains(toSpill)) {
-                    block.statements.add(i + 1, new Ir3.StoreStmt(toSpill));
-                    i++;
+                newStmts.add(stmt);
+                for (int d = 0; d < stmt.defCount(); d++) {
+                    Ir3.Var var = stmt.getDef(d);
+                    if (spilling[var.index]) newStmts.add(new Ir3.StoreStmt(var));
                 }
             }
+            if (newStmts != null) {
+                block.statements = newStmts;
+                changedBlocks.add(block);
+            }
+        }
+        return changedBlocks;
+    }
+
+    private boolean spillsAny(Ir3.Stmt stmt, boolean[] spilling) {
+        for (int u = 0; u < stmt.useCount(); u++) {
+            if (spilling[stmt.getUse(u).index]) return true;
+        }
+        for (int d = 0; d < stmt.defCount(); d++) {
+            if (spilling[stmt.getDef(d).index]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Whether use u is the first use of its var in stmt, so a var used twice is loaded once.
+     */
+    private boolean firstUse(Ir3.Stmt stmt, int u) {
+        Ir3.Var var = stmt.getUse(u);
+        for (int v = 0; v < u; v++) {
+            if (stmt.getUse(v) == var) return false;
         }
+        return true;
     }
 }
@@ -2,92 +2,282 @@ package jlite.pass;
 
 import jlite.ir.Ir3;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.Stack;
 
+/**
+ * Interference graph in the Chaitin/Briggs layout. Nodes are the vars of the method, numbered by their
+ * liveness index. A triangular bit matrix answers interference checks, and an int adjacency list per node
+ * is used to walk neighbours.
+ * <p>
+ * Edges are only added where a var is defined: the def interferes with everything live out of its
+ * statement. Vars live into the entry block have no defining statement, so they form a clique.
+ * Nodes are kept in index order so that the colouring does not depend on identity hash codes.
+ */
 public class RegisterInterferenceGraph {
-    HashMap<Ir3.Var, HashSet<Ir3.Var>> adjList = new HashMap<>();
+    private final ArrayList<Ir3.Var> nodes;
+    private final long[] matrix;
+    private final int[][] adjList;
+    private final int[] degree;
 
     public RegisterInterferenceGraph(Ir3.Method method) {
-        for (Ir3.Var arg : method.args) {
-            adjList.put(arg, new HashSet<>());
-        }
+        nodes = method.liveness.vars;
+        int n = nodes.size();
+        matrix = new long[(int) ((triangleIndex(n, 0) + 63) >>> 6)];
+        adjList = new int[n][];
+        degree = new int[n];
 
-        for (Ir3.Var local : method.locals) {
-            adjList.put(local, new HashSet<>());
+        if (!method.blocks.isEmpty()) {
+            Ir3.Block entry = method.blocks.get(0);
+            List<Ir3.Var> entryLive = new ArrayList<>(method.liveness.liveIn(entry));
+            for (int i = 0; i < entryLive.size(); i++) {
+                for (int j = i + 1; j < entryLive.size(); j++) {
+                    addEdge(entryLive.get(i).index, entryLive.get(j).index);
+                }
+            }
         }
 
         for (Ir3.Block block : method.blocks) {
-            for (Ir3.Stmt stmt : block.statements) {
-                HashSet<Ir3.Var> liveOutInfo = method.liveness.stmtLiveOutMap.get(stmt);
-                HashSet<Ir3.Var> workingSet = new HashSet<>(liveOutInfo);
-                while (!workingSet.isEmpty()) {
-                    Ir3.Var a = workingSet.iterator().next();
-                    workingSet.remove(a);
-                    if (!adjList.containsKey(a)) {
-                        adjList.put(a, new HashSet<>());
-                    }
-                    for (Ir3.Var b : workingSet) {
-                        // Add the relation between a and b
-                        HashSet<Ir3.Var> aNeighbours = adjList.get(a);
-                        HashSet<Ir3.Var> bNeighbours = adjList.getOrDefault(b, new HashSet<>());
-                        aNeighbours.add(b);
-                        bNeighbours.add(a);
-                        adjList.put(a, aNeighbours);
-                        adjList.put(b, bNeighbours);
-                    }
-                }
+            method.liveness.scanBackward(block, (stmt, liveOut) -> addDefEdges(stmt, liveOut));
+        }
+    }
+
+    /**
+     * Updates the graph after spill code has been inserted for the spilled vars, and their liveness has
+     * been patched. The spilled vars lose all their edges, then the def edges of the changed blocks are
+     * added again, which reconnects the short live ranges around each load and store.
+     */
+    public void updateSpilled(Ir3.Method method, Collection<Ir3.Var> spilled, Collection<Ir3.Block> changedBlocks) {
+        removeEdges(spilled);
+        for (Ir3.Block block : changedBlocks) {
+            method.liveness.scanBackward(block, (stmt, liveOut) -> addDefEdges(stmt, liveOut));
+        }
+    }
+
+    private void addDefEdges(Ir3.Stmt stmt, Set<Ir3.Var> liveOut) {
+        for (int i = 0; i < stmt.defCount(); i++) {
+            Ir3.Var def = stmt.getDef(i);
+            for (Ir3.Var live : liveOut) {
+                addEdge(def.index, live.index);
             }
         }
     }
 
-    public Ir3.Var findNode(HashMap<Ir3.Var, HashSet<Ir3.Var>> workingAdjList, Integer count) {
-        for (Map.Entry<Ir3.Var, HashSet<Ir3.Var>> entry : workingAdjList.entrySet()) {
-            if (entry.getValue().size() < count) {
-                return entry.getKey();
+    private void addEdge(int a, int b) {
+        if (a == b) return;
+        long bit = a > b ? triangleIndex(a, b) : triangleIndex(b, a);
+        int word = (int) (bit >>> 6);
+        long mask = 1L << bit;
+        if ((matrix[word] & mask) != 0) return;
+        matrix[word] |= mask;
+        addNeighbour(a, b);
+        addNeighbour(b, a);
+    }
+
+    /**
+     * Removes every edge of the given vars. Each adjacency list that loses an edge is compacted once.
+     */
+    private void removeEdges(Collection<Ir3.Var> vars) {
+        boolean[] removing = new boolean[nodes.size()];
+        for (Ir3.Var var : vars) {
+            removing[var.index] = true;
+        }
+        boolean[] affected = new boolean[nodes.size()];
+        for (Ir3.Var var : vars) {
+            int node = var.index;
+            for (int i = 0; i < degree[node]; i++) {
+                int neighbour = adjList[node][i];
+                long bit = node > neighbour ? triangleIndex(node, neighbour) : triangleIndex(neighbour, node);
+                matrix[(int) (bit >>> 6)] &= ~(1L << bit);
+                if (!removing[neighbour] && !affected[neighbour]) {
+                    affected[neighbour] = true;
+                    compact(neighbour, removing);
+                }
             }
+            degree[node] = 0;
         }
-        return null;
     }
 
-    public Stack<Ir3.Var> getProcessingOrder(Integer size) {
-        Stack<Ir3.Var> stack = new Stack<>();
-        HashMap<Ir3.Var, HashSet<Ir3.Var>> workingAdjList = new HashMap<>();
-        for (Map.Entry<Ir3.Var, HashSet<Ir3.Var>> entry : adjList.entrySet()) {
-            workingAdjList.put(entry.getKey(), entry.getValue());
+    private void compact(int node, boolean[] removing) {
+        int[] neighbours = adjList[node];
+        int kept = 0;
+        for (int i = 0; i < degree[node]; i++) {
+            if (!removing[neighbours[i]]) neighbours[kept++] = neighbours[i];
         }
+        degree[node] = kept;
+    }
+
+    private void addNeighbour(int node, int neighbour) {
+        int[] neighbours = adjList[node];
+        if (neighbours == null) {
+            neighbours = adjList[node] = new int[4];
+        } else if (degree[node] == neighbours.length) {
+            neighbours = adjList[node] = Arrays.copyOf(neighbours, neighbours.length * 2);
+        }
+        neighbours[degree[node]++] = neighbour;
+    }
+
+    // Position of (i, j), i > j, in the lower triangle stored row by row
+    private static long triangleIndex(long i, long j) {
+        return i * (i - 1) / 2 + j;
+    }
+
+    public boolean interferes(Ir3.Var a, Ir3.Var b) {
+        if (a.index == b.index) return false;
+        long bit = a.index > b.index ? triangleIndex(a.index, b.index) : triangleIndex(b.index, a.index);
+        return (matrix[(int) (bit >>> 6)] & (1L << bit)) != 0;
+    }
 
-        while (!workingAdjList.isEmpty()) {
-            Ir3.Var chosen = findNode(workingAdjList, size);
-            if (chosen == null) { // Choose any node
-                chosen = getHighestDegree(workingAdjList);
+    public int getDegree(Ir3.Var var) {
+        return degree[var.index];
+    }
+
+    public List<Ir3.Var> getNeighbours(Ir3.Var var) {
+        int node = var.index;
+        return new AbstractList<Ir3.Var>() {
+            @Override
+            public Ir3.Var get(int i) {
+                return nodes.get(adjList[node][i]);
             }
-            HashSet<Ir3.Var> neighbours = workingAdjList.get(chosen);
-            for (Ir3.Var neighbour : neighbours) {
-                workingAdjList.get(neighbour).remove(chosen);
+
+            @Override
+            public int size() {
+                return degree[node];
             }
-            workingAdjList.remove(chosen);
-            stack.push(chosen);
+        };
+    }
+
+    /**
+     * Orders the nodes for colouring: repeatedly removes a node of degree less than size, or the
+     * unspilled node of highest degree if there is none. The last node removed is on top of the stack.
+     */
+    public Stack<Ir3.Var> getProcessingOrder(Integer size) {
+        Stack<Ir3.Var> stack = new Stack<>();
+        Simplifier simplifier = new Simplifier(size);
+        for (int node = simplifier.remove(); node >= 0; node = simplifier.remove()) {
+            stack.push(nodes.get(node));
         }
         return stack;
     }
 
-    private Ir3.Var getHighestDegree(HashMap<Ir3.Var, HashSet<Ir3.Var>> workingAdjList) {
-        Integer highestDegree = -1;
-        Ir3.Var var = null;
-        for (Map.Entry<Ir3.Var, HashSet<Ir3.Var>> entry : workingAdjList.entrySet()) {
-            Integer degree = entry.getValue().size();
-            if (!entry.getKey().spilled && degree > highestDegree) {
-                var = entry.getKey();
-                highestDegree = degree;
+    /**
+     * Simplify worklist. Nodes of degree less than k wait on a stack. The others are kept in lists bucketed
+     * by degree, with spilled and unspilled nodes apart, so a degree update is O(1) and finding the highest
+     * degree spill candidate is amortised O(1), as the degrees only go down.
+     */
+    private class Simplifier {
+        private final int k;
+        private final int[] workingDegree;
+        private final boolean[] removed;
+        private final int[] lowDegree;
+        private int lowDegreeSize;
+        private final int[] next;
+        private final int[] prev;
+        private final Buckets unspilled;
+        private final Buckets spilled;
+
+        Simplifier(int k) {
+            int n = nodes.size();
+            this.k = k;
+            workingDegree = Arrays.copyOf(degree, n);
+            removed = new boolean[n];
+            lowDegree = new int[n];
+            next = new int[n];
+            prev = new int[n];
+            int maxDegree = 0;
+            for (int d : degree) {
+                maxDegree = Math.max(maxDegree, d);
+            }
+            unspilled = new Buckets(maxDegree);
+            spilled = new Buckets(maxDegree);
+
+            // Added in reverse, so that lower indices are removed first
+            for (int node = n - 1; node >= 0; node--) {
+                if (workingDegree[node] < k) {
+                    lowDegree[lowDegreeSize++] = node;
+                } else {
+                    bucketsOf(node).link(node, workingDegree[node]);
+                }
+            }
+        }
+
+        /**
+         * Removes the next node from the graph, and returns -1 once the graph is empty.
+         */
+        int remove() {
+            int chosen;
+            if (lowDegreeSize > 0) {
+                chosen = lowDegree[--lowDegreeSize];
+            } else {
+                chosen = unspilled.removeHighest();
+                if (chosen < 0) chosen = spilled.removeHighest();
+                if (chosen < 0) return -1;
+            }
+            removed[chosen] = true;
+            for (int i = 0; i < degree[chosen]; i++) {
+                int neighbour = adjList[chosen][i];
+                if (!removed[neighbour]) decrementDegree(neighbour);
             }
+            return chosen;
         }
-        return var;
-    }
 
-    public HashSet<Ir3.Var> getNeighbours(Ir3.Var toColor) {
-        return adjList.get(toColor);
+        private void decrementDegree(int node) {
+            int d = workingDegree[node]--;
+            if (d < k) return;
+            Buckets buckets = bucketsOf(node);
+            buckets.unlink(node, d);
+            if (d - 1 < k) {
+                lowDegree[lowDegreeSize++] = node;
+            } else {
+                buckets.link(node, d - 1);
+            }
+        }
+
+        private Buckets bucketsOf(int node) {
+            return nodes.get(node).spilled ? spilled : unspilled;
+        }
+
+        /**
+         * Doubly linked lists of nodes, one per degree. The links are shared between both sets of buckets.
+         */
+        private class Buckets {
+            private final int[] head;
+            private int highest;
+
+            Buckets(int maxDegree) {
+                head = new int[maxDegree + 1];
+                Arrays.fill(head, -1);
+                highest = maxDegree;
+            }
+
+            void link(int node, int d) {
+                prev[node] = -1;
+                next[node] = head[d];
+                if (head[d] >= 0) prev[head[d]] = node;
+                head[d] = node;
+            }
+
+            void unlink(int node, int d) {
+                if (prev[node] >= 0) {
+                    next[prev[node]] = next[node];
+                } else {
+                    head[d] = next[node];
+                }
+                if (next[node] >= 0) prev[next[node]] = prev[node];
+            }
+
+            int removeHighest() {
+                while (highest >= 0 && head[highest] < 0) highest--;
+                if (highest < 0) return -1;
+                int node = head[highest];
+                unlink(node, highest);
+                return node;
+            }
+        }
     }
 }
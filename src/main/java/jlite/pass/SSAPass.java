@@ -2,23 +2,47 @@ package jlite.pass;
 
 import jlite.ir.Ir3;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Arrays;
 
 /**
  * http://www.cs.cmu.edu/afs/cs/academic/class/15745-s12/public/lectures/L13-SSA-Concepts-1up.pdf
  * Use Dominance and Dominance Frontiers to Convert to SSA form
+ * <p>
+ * The phis of a block are kept in block.phis, ahead of its statements. Pruned form is the default.
  */
 public class SSAPass extends Pass {
-    private ArrayList<Ir3.Var> newLocals = new ArrayList<>();
-    private HashMap<Ir3.Var, Ir3.Var> reachingDefMap;
-    private HashMap<Ir3.Var, Ir3.Block> defMap;
+    /**
+     * Which phis are placed: all of them, only those of vars that are live across a block boundary
+     * somewhere, or only those whose var is live into the join point.
+     */
+    public enum Form {
+        MINIMAL, SEMI_PRUNED, PRUNED
+    }
+
+    private final Form form;
     private int counter = 0;
 
+    // Renaming state of the current method: the vars by number, the reaching def of each, and a log
+    // of the versions replaced by each push
+    private ArrayList<Ir3.Var> vars;
+    private ArrayList<Ir3.Var> versions;
+    private int[] logVars = new int[16];
+    private Ir3.Var[] logVersions = new Ir3.Var[16];
+    private int logSize;
+
+    public SSAPass() {
+        this(Form.PRUNED);
+    }
+
+    public SSAPass(Form form) {
+        this.form = form;
+    }
+
     public void pass(Ir3.Prog prog) {
         for (Ir3.Method method : prog.methods) {
-            doMethod(method);
+            pass(method);
         }
     }
 
@@ -28,134 +52,228 @@ public class SSAPass extends Pass {
      *
      * @param method Ir3 Method to process
      */
-    private void doMethod(Ir3.Method method) {
+    public void pass(Ir3.Method method) {
         assert method.blocks != null; // assert basic block constructed
         assert method.dominance != null; // Check that dominance info is computed
+        counter = 0; // versions are numbered per method, so a method is renamed the same way on its own
+        vars = new ArrayList<>();
+        versions = new ArrayList<>();
+        for (Ir3.Var v : method.args) {
+            id(v);
+        }
+        for (Ir3.Var v : method.locals) {
+            id(v);
+        }
         placePhis(method);
         renameVariables(method);
     }
 
+    /**
+     * Places a phi for each var numbered so far at the iterated dominance frontier of its defs.
+     * Semi-pruned form skips vars that are never used before being defined in the same block, since they
+     * cannot be live at a join, and pruned form also skips each join point the var is not live into.
+     */
     private void placePhis(Ir3.Method method) {
-        HashMap<Ir3.Block, HashSet<Ir3.Var>> orig = new HashMap<>();
-        HashMap<Ir3.Var, HashSet<Ir3.Block>> defSites = new HashMap<>();
-
+        // The blocks defining each var, and the blocks using it before any def in them
+        int n = vars.size();
+        ArrayList<ArrayList<Ir3.Block>> defSites = new ArrayList<>(n);
+        ArrayList<ArrayList<Ir3.Block>> useSites = new ArrayList<>(n);
+        for (int v = 0; v < n; v++) {
+            defSites.add(new ArrayList<>());
+            useSites.add(new ArrayList<>());
+        }
+        int[] definedIn = new int[n];
+        int[] usedIn = new int[n];
+        Arrays.fill(definedIn, -1);
+        Arrays.fill(usedIn, -1);
         for (Ir3.Block block : method.blocks) {
             for (Ir3.Stmt stmt : block.statements) {
-                for (Ir3.Var def : stmt.getDefs()) {
-                    HashSet<Ir3.Var> o = orig.getOrDefault(block, new HashSet<>());
-                    o.add(def);
-                    orig.put(block, o);
-                    HashSet<Ir3.Block> ds = defSites.getOrDefault(def, new HashSet<>());
-                    ds.add(block);
-                    defSites.put(def, ds);
+                for (int i = 0; i < stmt.useCount(); i++) {
+                    int v = varIndex(vars, stmt.getUse(i));
+                    if (v < 0 || definedIn[v] == block.index || usedIn[v] == block.index) continue;
+                    usedIn[v] = block.index;
+                    useSites.get(v).add(block);
+                }
+                for (int i = 0; i < stmt.defCount(); i++) {
+                    int v = varIndex(vars, stmt.getDef(i));
+                    if (v < 0 || definedIn[v] == block.index) continue;
+                    definedIn[v] = block.index;
+                    defSites.get(v).add(block);
                 }
             }
         }
 
-        ArrayList<Ir3.Var> vars = new ArrayList<>();
-        vars.addAll(method.args);
-        vars.addAll(method.locals);
-
-        HashSet<Ir3.Block> W;
-        HashSet<Ir3.Block> P;
-        for (Ir3.Var v : vars) {
-            W = new HashSet<>();
-            P = new HashSet<>();
-            W.addAll(defSites.getOrDefault(v, new HashSet<>()));
-
-            while (!W.isEmpty()) {
-                Ir3.Block n = W.iterator().next();
-                W.remove(n);
-                HashSet<Ir3.Block> frontier = method.dominance.frontier.get(n);
-                for (Ir3.Block y : frontier) {
-                    if (!P.contains(y)) {
-                        y.statements.add(0, new Ir3.PhiStmt(v, y.incoming.size()));
-                        P.add(y);
-                        HashSet<Ir3.Var> o = orig.getOrDefault(y, new HashSet<>());
-                        if (!o.contains(v)) W.add(y);
-                    }
+        int[] hasPhi = new int[method.blocks.size()];
+        int[] queued = new int[method.blocks.size()];
+        int[] liveIn = new int[method.blocks.size()];
+        int[] defines = new int[method.blocks.size()];
+        Arrays.fill(hasPhi, -1);
+        Arrays.fill(queued, -1);
+        Arrays.fill(liveIn, -1);
+        Arrays.fill(defines, -1);
+        ArrayDeque<Ir3.Block> worklist = new ArrayDeque<>();
+        for (int v = 0; v < n; v++) {
+            if (form != Form.MINIMAL && useSites.get(v).isEmpty()) continue;
+            if (form == Form.PRUNED) markLiveIn(v, defSites.get(v), useSites.get(v), liveIn, defines, worklist);
+            Ir3.Var var = vars.get(v);
+            for (Ir3.Block block : defSites.get(v)) {
+                queued[block.index] = v;
+                worklist.add(block);
+            }
+            while (!worklist.isEmpty()) {
+                Ir3.Block x = worklist.poll();
+                for (int f = 0; f < method.dominance.frontierSize(x); f++) {
+                    Ir3.Block y = method.dominance.frontier(x, f);
+                    if (hasPhi[y.index] == v) continue;
+                    if (form == Form.PRUNED && liveIn[y.index] != v) continue;
+                    y.phis.add(new Ir3.PhiStmt(var, y.incoming.size()));
+                    hasPhi[y.index] = v;
+                    if (queued[y.index] == v) continue;
+                    queued[y.index] = v;
+                    worklist.add(y);
                 }
             }
         }
     }
 
-    private void renameVariables(Ir3.Method method) {
-        Ir3.Block first = method.blocks.get(0);
-        reachingDefMap = new HashMap<>();
-        defMap = new HashMap<>();
+    /**
+     * Marks the blocks var v is live into, walking back from the blocks that use it before any def in
+     * them, and stopping at the blocks that define it. This takes time in proportion to the live range
+     * of v, rather than to the number of vars times the number of blocks.
+     */
+    private void markLiveIn(int v, ArrayList<Ir3.Block> defSites, ArrayList<Ir3.Block> useSites,
+                            int[] liveIn, int[] defines, ArrayDeque<Ir3.Block> worklist) {
+        for (Ir3.Block block : defSites) {
+            defines[block.index] = v;
+        }
+        for (Ir3.Block block : useSites) {
+            liveIn[block.index] = v;
+            worklist.add(block);
+        }
+        while (!worklist.isEmpty()) {
+            Ir3.Block block = worklist.poll();
+            for (Ir3.Block pred : block.incoming) {
+                if (liveIn[pred.index] == v || defines[pred.index] == v) continue;
+                liveIn[pred.index] = v;
+                worklist.add(pred);
+            }
+        }
+    }
+
+    private static int varIndex(ArrayList<Ir3.Var> vars, Ir3.Var var) {
+        int i = var.index;
+        return i >= 0 && i < vars.size() && vars.get(i) == var ? i : -1;
+    }
 
+    /**
+     * Renames every def to a fresh var, and every use to the def that reaches it. Each var has a stack of
+     * versions, whose top is the reaching def. The blocks are visited in a preorder walk of the dominator
+     * tree, and the versions a block pushed are popped when the walk leaves its subtree, so only defs
+     * in dominating blocks are seen. The pushes are kept in a single log to undo them.
+     */
+    private void renameVariables(Ir3.Method method) {
+        ArrayList<Ir3.Var> newLocals = new ArrayList<>();
+        logSize = 0;
         for (Ir3.Var v : method.args) {
-            reachingDefMap.put(v, v);
-            defMap.put(v, first);
+            versions.set(id(v), v);
         }
 
-        for (Ir3.Var v : method.locals) {
-            defMap.put(v, first);
+        // The var each phi merges, before its def is renamed
+        Ir3.Var[][] phiVars = new Ir3.Var[method.blocks.size()][];
+        for (Ir3.Block block : method.blocks) {
+            phiVars[block.index] = new Ir3.Var[block.phis.size()];
+            for (int p = 0; p < block.phis.size(); p++) {
+                phiVars[block.index][p] = block.phis.get(p).var;
+            }
         }
 
+        ArrayList<Ir3.Block> open = new ArrayList<>(); // the path from the root of the tree to the block
+        ArrayList<Integer> marks = new ArrayList<>(); // the log size when each block on the path was entered
         for (Ir3.Block block : method.dominance.preorder) {
-            for (Ir3.Stmt stmt : block.statements) {
-                for (Ir3.Rval rval : stmt.getRvals()) {
-                    if (!(rval instanceof Ir3.VarRval)) continue;
-                    Ir3.VarRval varRval = (Ir3.VarRval) rval;
-                    Ir3.Var newVar = doUse(varRval.var, block, method);
-                    varRval.var = newVar;
-                }
+            while (!open.isEmpty() && !method.dominance.dominates(open.get(open.size() - 1), block)) {
+                open.remove(open.size() - 1);
+                popTo(marks.remove(marks.size() - 1));
+            }
+            open.add(block);
+            marks.add(logSize);
 
-                if (stmt instanceof Ir3.FieldAssignStatement) {
-                    Ir3.FieldAssignStatement fieldAssignStatement = (Ir3.FieldAssignStatement) stmt;
-                    fieldAssignStatement.target = doUse(fieldAssignStatement.target, block, method);
-                }
+            for (Ir3.PhiStmt phiStmt : block.phis) {
+                doDef(phiStmt, newLocals);
+            }
 
-                for (Ir3.Var def : stmt.getDefs()) {
-                    if (def == null) continue;
-                    updateReachingDef(def, block, method);
-                    Ir3.Var newVar = getNewVar(def);
-                    newLocals.add(newVar);
-                    stmt.updateDef(newVar);
-                    defMap.put(newVar, block);
-                    reachingDefMap.put(newVar, reachingDefMap.get(def));
-                    reachingDefMap.put(def, newVar);
+            for (Ir3.Stmt stmt : block.statements) {
+                for (int i = 0; i < stmt.useCount(); i++) {
+                    stmt.setUse(i, doUse(stmt.getUse(i), newLocals));
                 }
+                doDef(stmt, newLocals);
             }
 
             for (Ir3.Block b : block.outgoing) {
-                for (Ir3.Stmt s : b.statements) {
-                    if (!(s instanceof Ir3.PhiStmt)) break;
-                    Ir3.PhiStmt phiStmt = (Ir3.PhiStmt) s;
-                    doPhi(phiStmt, block, b, method);
+                for (int k = 0; k < b.incoming.size(); k++) {
+                    if (b.incoming.get(k) != block) continue;
+                    for (int p = 0; p < b.phis.size(); p++) {
+                        Ir3.Var v = versions.get(id(phiVars[b.index][p]));
+                        if (v != null) b.phis.get(p).args.set(k, v);
+                    }
                 }
             }
-
-            method.locals = newLocals;
         }
+        method.locals = newLocals;
     }
 
-    private void updateReachingDef(Ir3.Var def, Ir3.Block block, Ir3.Method method) {
-        Ir3.Var r = reachingDefMap.get(def);
-        while (!(r == null || method.dominance.dominates(defMap.get(r), block)))
-            r = reachingDefMap.get(r);
-        reachingDefMap.put(def, r);
+    private void doDef(Ir3.Stmt stmt, ArrayList<Ir3.Var> newLocals) {
+        for (int i = 0; i < stmt.defCount(); i++) {
+            Ir3.Var def = stmt.getDef(i);
+            Ir3.Var newVar = getNewVar(def);
+            newLocals.add(newVar);
+            stmt.updateDef(newVar);
+            push(id(def), newVar);
+        }
     }
 
-    private Ir3.Var doUse(Ir3.Var use, Ir3.Block block, Ir3.Method method) {
-        updateReachingDef(use, block, method);
-        Ir3.Var reach = reachingDefMap.get(use);
+    /**
+     * Returns the def reaching a use of var. A var with no reaching def gets a fresh one, which then
+     * reaches the rest of the subtree.
+     */
+    private Ir3.Var doUse(Ir3.Var use, ArrayList<Ir3.Var> newLocals) {
+        int v = id(use);
+        Ir3.Var reach = versions.get(v);
         if (reach == null) {
             reach = getNewVar(use);
             newLocals.add(reach);
-            defMap.put(reach, block);
-            reachingDefMap.put(use, reach);
+            push(v, reach);
         }
         return reach;
     }
 
-    private void doPhi(Ir3.PhiStmt phiStmt, Ir3.Block incomingB, Ir3.Block phiB, Ir3.Method method) {
-        updateReachingDef(phiStmt.var, incomingB, method);
-        Ir3.Var v = reachingDefMap.get(phiStmt.var);
-        if (v != null) {
-            int index = phiB.incoming.indexOf(incomingB);
-            phiStmt.args.set(index, v);
+    /**
+     * Returns the number of var among the vars being renamed, numbering it if it is new.
+     */
+    private int id(Ir3.Var var) {
+        int v = varIndex(vars, var);
+        if (v >= 0) return v;
+        var.index = vars.size();
+        vars.add(var);
+        versions.add(null);
+        return var.index;
+    }
+
+    private void push(int v, Ir3.Var version) {
+        if (logSize == logVars.length) {
+            logVars = Arrays.copyOf(logVars, logSize * 2);
+            logVersions = Arrays.copyOf(logVersions, logSize * 2);
+        }
+        logVars[logSize] = v;
+        logVersions[logSize] = versions.get(v);
+        logSize++;
+        versions.set(v, version);
+    }
+
+    private void popTo(int mark) {
+        while (logSize > mark) {
+            logSize--;
+            versions.set(logVars[logSize], logVersions[logSize]);
+            logVersions[logSize] = null;
         }
     }
 
@@ -81,71 +81,88 @@ public class SpillPass extends Pass {
         }
 
         for (Ir3.Block block : method.blocks) {
+            for (Ir3.PhiStmt phi : block.phis) {
+                defLocationMap.put(phi.var, block);
+            }
             for (Ir3.Stmt stmt : block.statements) {
-                for (Ir3.Var def : stmt.getDefs()) {
-                    defLocationMap.put(def, block);
+                for (int i = 0; i < stmt.defCount(); i++) {
+                    defLocationMap.put(stmt.getDef(i), block);
                 }
             }
         }
     }
 
     /**
-     * Dataflow Analysis with modifications:
+     * Dataflow Analysis with modifications, solved as a backward problem by DataflowSolver:
      *   1. domain = Var -> Natural Numbers + infty
      *   2. meet operator = min(a(v), b(v)) for all v
      *   3. Transfer function = \lambda v . length_B + { v_B(v) if v_B(v) != infty ; |B| + a(v) otherwise }
      */
     private void getNextUse(Ir3.Method method) {
-        reinitNextUseInfo(method);
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-
-            for (Ir3.Block block : method.blockPostOrder) {
-                NextUseInfo nextUseInfo = blockNextUseInfoHashMap.get(block);
-
-                // Recompute OUT[B]
-                for (Ir3.Block out : block.outgoing) {
-                    NextUseInfo outNextUseInfo = blockNextUseInfoHashMap.get(out);
-                    for (Map.Entry<Ir3.Var, Integer> entry : outNextUseInfo.in.entrySet()) {
-                        Ir3.Var key = entry.getKey();
-                        Integer value = entry.getValue();
-
-                        if (!nextUseInfo.out.containsKey(key) || value < nextUseInfo.out.get(key))
-                            nextUseInfo.out.put(key, value);
-                    }
-                }
+        DataflowSolver<HashMap<Ir3.Var, Integer>> solver = new DataflowSolver<>(new NextUseProblem()).solve(method);
+        blockNextUseInfoHashMap = new HashMap<>();
+        for (Ir3.Block block : method.blocks) {
+            NextUseInfo nextUseInfo = new NextUseInfo();
+            nextUseInfo.out = solver.input(block);
+            nextUseInfo.in = solver.output(block);
+            blockNextUseInfoHashMap.put(block, nextUseInfo);
+        }
+    }
+
+    private class NextUseProblem implements DataflowSolver.Problem<HashMap<Ir3.Var, Integer>> {
+        @Override
+        public boolean isForward() {
+            return false;
+        }
+
+        @Override
+        public HashMap<Ir3.Var, Integer> newFact(Ir3.Block block) {
+            return new HashMap<>();
+        }
+
+        @Override
+        public void initInput(Ir3.Block block, HashMap<Ir3.Var, Integer> out) {
+            out.clear();
+        }
 
-                HashSet<Ir3.Var> seen = new HashSet<>();
-                for (int idx = 0; idx < block.statements.size(); idx++) {
-                    Ir3.Stmt stmt = block.statements.get(idx);
-                    if (stmt instanceof Ir3.JumpStmt) {
-                        Set<Ir3.Var> uses = getJumpUses(block);
-                        for (Ir3.Var use : uses) {
-                            if (seen.contains(use)) continue;
-                            if (!nextUseInfo.in.containsKey(use) || idx < nextUseInfo.in.get(use)) {
-                                changed = true;
-                                nextUseInfo.in.put(use, idx);
-                            }
-                            seen.add(use);
-                        }
-
-                        for (Ir3.Var def : stmt.getDefs()) {
-                            if (def != null) seen.add(def);
-                        }
+        // Recompute OUT[B]
+        @Override
+        public void meet(HashMap<Ir3.Var, Integer> out, Ir3.Block successor, HashMap<Ir3.Var, Integer> successorIn) {
+            for (Map.Entry<Ir3.Var, Integer> entry : successorIn.entrySet()) {
+                out.merge(entry.getKey(), entry.getValue(), Math::min);
+            }
+        }
+
+        @Override
+        public boolean transfer(Ir3.Block block, HashMap<Ir3.Var, Integer> out, HashMap<Ir3.Var, Integer> in) {
+            HashMap<Ir3.Var, Integer> newIn = new HashMap<>();
+            HashSet<Ir3.Var> seen = new HashSet<>();
+            for (int idx = 0; idx < block.statements.size(); idx++) {
+                Ir3.Stmt stmt = block.statements.get(idx);
+                if (stmt instanceof Ir3.JumpStmt) {
+                    Set<Ir3.Var> uses = getJumpUses(block);
+                    for (Ir3.Var use : uses) {
+                        if (seen.contains(use)) continue;
+                        newIn.merge(use, idx, Math::min);
+                        seen.add(use);
                     }
-                }
 
-                for (Map.Entry<Ir3.Var, Integer> entry : nextUseInfo.out.entrySet()) {
-                    Ir3.Var key = entry.getKey();
-                    if (seen.contains(key)) continue;
-                    int V = entry.getValue() + block.statements.size();
-                    if (!nextUseInfo.in.containsKey(key) || V < nextUseInfo.in.get(key)) {
-                        changed = true;
-                        nextUseInfo.in.put(key, V);
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        seen.add(stmt.getDef(i));
                     }
                 }
             }
+
+            for (Map.Entry<Ir3.Var, Integer> entry : out.entrySet()) {
+                Ir3.Var key = entry.getKey();
+                if (seen.contains(key)) continue;
+                newIn.merge(key, entry.getValue() + block.statements.size(), Math::min);
+            }
+
+            if (newIn.equals(in)) return false;
+            in.clear();
+            in.putAll(newIn);
+            return true;
         }
     }
 
@@ -153,9 +170,7 @@ public class SpillPass extends Pass {
         HashSet<Ir3.Var> uses = new HashSet<>();
         for (Ir3.Block out : block.outgoing) {
             int incomingIdx = out.incoming.indexOf(block);
-            for (Ir3.Stmt stmt : out.statements) {
-                if (!(stmt instanceof Ir3.PhiStmt)) break;
-                Ir3.PhiStmt phiStmt = (Ir3.PhiStmt) stmt;
+            for (Ir3.PhiStmt phiStmt : out.phis) {
                 if (!phiStmt.memory && phiStmt.args.get(incomingIdx) != null) {
                     uses.add(phiStmt.args.get(incomingIdx));
                 }
@@ -164,14 +179,6 @@ public class SpillPass extends Pass {
         return uses;
     }
 
-    private void reinitNextUseInfo(Ir3.Method method) {
-        blockNextUseInfoHashMap = new HashMap<>();
-        for (Ir3.Block block : method.blocks) {
-            blockNextUseInfoHashMap.put(block, new NextUseInfo());
-        }
-    }
-
-
     /**
      * Map Var -> Natural Numbers + infty
      */
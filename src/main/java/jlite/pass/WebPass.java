@@ -68,12 +68,9 @@ public class WebPass extends Pass {
             }
 
             for (Ir3.Block block : method.blocks) {
-                for (Ir3.Stmt stmt : block.statements) {
-                    if (stmt instanceof Ir3.PhiStmt) {
-                        Ir3.PhiStmt phiStmt = (Ir3.PhiStmt) stmt;
-                        for (Ir3.Var v : phiStmt.args) {
-                            union(phiStmt.var, v);
-                        }
+                for (Ir3.PhiStmt phiStmt : block.phis) {
+                    for (Ir3.Var v : phiStmt.args) {
+                        union(phiStmt.var, v);
                     }
                 }
             }
@@ -1,48 +1,292 @@
 package jlite.pass.optimizations;
 
+import jlite.ir.FlowGraph;
 import jlite.ir.Ir3;
-import jlite.pass.LivePass;
+import jlite.pass.DataflowSolver;
+import jlite.pass.FlowPass;
 import jlite.pass.PassUtils;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
- * Dead Code Elimination, depends on liveness analysis
- * If a statement defines something that is not live on output, it is safe to delete.
+ * Dead Code Elimination by mark and sweep.
+ * Statements with side effects are marked useful, and so is every def that reaches a use in a useful
+ * statement. Def-use chains come from reaching definitions, and are followed with a worklist.
+ * A conditional branch is only useful if its target and its fall-through lead to different code once
+ * the unmarked statements are gone. Everything unmarked is deleted in one sweep, and blocks that are
+ * no longer reachable are removed.
  */
 public class DeadCodeElimPass {
     public void pass(Ir3.Prog prog) {
-        LivePass livePass = new LivePass();
-        livePass.pass(prog);
-        while (elim(prog)) {
-            livePass.pass(prog);
+        for (Ir3.Method method : prog.methods) {
+            pass(method);
         }
-        PassUtils.write("_pass.deadcodeelim", prog);
+        PassUtils.write("deadcodeelim", prog);
     }
 
-    private boolean elim(Ir3.Prog ir3) {
-        boolean hasChange = false;
-        for (Ir3.Method method : ir3.methods) {
-            for (Ir3.Block block : method.blocks) {
-                ArrayList<Ir3.Stmt> newStmts = new ArrayList<>();
-                for (Ir3.Stmt stmt : block.statements) {
-                    if (!stmt.getDefs().isEmpty()) {
-                        boolean defsAllDead = true;
-                        for (Ir3.Var def : stmt.getDefs()) {
-                            if (method.liveness.stmtLiveOutMap.get(stmt).contains(def)) {
-                                defsAllDead = false;
-                                break;
-                            }
-                        }
-                        if (!defsAllDead) newStmts.add(stmt);
-                        else hasChange = true;
-                    } else {
-                        newStmts.add(stmt);
+    public void pass(Ir3.Method method) {
+        MethodDce dce = new MethodDce(method);
+        dce.numberStmts();
+        dce.reachingDefs();
+        dce.mark();
+        dce.sweep();
+        dce.removeUnreachable();
+    }
+
+    private static boolean isPure(Ir3.Stmt stmt) {
+        return stmt instanceof Ir3.AssignStmt
+                || stmt instanceof Ir3.BinaryStmt
+                || stmt instanceof Ir3.UnaryStmt
+                || stmt instanceof Ir3.AllocStmt
+                || stmt instanceof Ir3.NewStmt
+                || stmt instanceof Ir3.FieldAccessStatement
+                || stmt instanceof Ir3.LoadStmt
+                || stmt instanceof Ir3.PhiStmt;
+    }
+
+    /**
+     * Statements of the reachable blocks are numbered in pre-order, and a def is identified by the
+     * number of its statement.
+     */
+    private static class MethodDce implements DataflowSolver.Problem<BitSet> {
+        final Ir3.Method method;
+        final ArrayList<Ir3.Stmt> stmts = new ArrayList<>();
+        int[] blockStart; // first statement number of each block, by pre-order index
+        int[] stmtBlock;
+        final HashMap<Ir3.Var, BitSet> varDefs = new HashMap<>();
+        DataflowSolver<BitSet> solver;
+        HashMap<Ir3.Block, BitSet> blockGen;
+        HashMap<Ir3.Block, BitSet> blockKill;
+        BitSet marked;
+        BitSet deadBranches; // by pre-order index of the block the branch ends
+        int[] worklist;
+        int worklistSize;
+        private BitSet scratch;
+
+        MethodDce(Ir3.Method method) {
+            this.method = method;
+        }
+
+        private void numberStmts() {
+            int n = method.blockPreOrder.size();
+            blockStart = new int[n + 1];
+            for (int b = 0; b < n; b++) {
+                blockStart[b] = stmts.size();
+                stmts.addAll(method.blockPreOrder.get(b).statements);
+            }
+            blockStart[n] = stmts.size();
+
+            stmtBlock = new int[stmts.size()];
+            for (int b = 0; b < n; b++) {
+                for (int s = blockStart[b]; s < blockStart[b + 1]; s++) {
+                    stmtBlock[s] = b;
+                    Ir3.Stmt stmt = stmts.get(s);
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        varDefs.computeIfAbsent(stmt.getDef(i), v -> new BitSet()).set(s);
+                    }
+                }
+            }
+        }
+
+        private void reachingDefs() {
+            blockGen = new HashMap<>();
+            blockKill = new HashMap<>();
+            for (Ir3.Block block : method.blockPreOrder) {
+                BitSet gen = new BitSet(stmts.size());
+                BitSet kill = new BitSet(stmts.size());
+                for (int s = blockStart[block.preOrderIndex]; s < blockStart[block.preOrderIndex + 1]; s++) {
+                    Ir3.Stmt stmt = stmts.get(s);
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        BitSet defs = varDefs.get(stmt.getDef(i));
+                        gen.andNot(defs);
+                        kill.or(defs);
+                        gen.set(s);
                     }
                 }
+                blockGen.put(block, gen);
+                blockKill.put(block, kill);
+            }
+            scratch = new BitSet(stmts.size());
+            solver = new DataflowSolver<>(this).solve(method);
+        }
+
+        @Override
+        public boolean isForward() {
+            return true;
+        }
+
+        @Override
+        public BitSet newFact(Ir3.Block block) {
+            return new BitSet(stmts.size());
+        }
+
+        @Override
+        public void initInput(Ir3.Block block, BitSet reachIn) {
+            reachIn.clear();
+        }
+
+        // IN[B] = U OUT[P]
+        @Override
+        public void meet(BitSet reachIn, Ir3.Block predecessor, BitSet predecessorReachOut) {
+            reachIn.or(predecessorReachOut);
+        }
+
+        // OUT[B] = gen[B] U (IN[B] - kill[B])
+        @Override
+        public boolean transfer(Ir3.Block block, BitSet reachIn, BitSet reachOut) {
+            scratch.clear();
+            scratch.or(reachIn);
+            scratch.andNot(blockKill.get(block));
+            scratch.or(blockGen.get(block));
+            if (scratch.equals(reachOut)) return false;
+            reachOut.clear();
+            reachOut.or(scratch);
+            return true;
+        }
+
+        /**
+         * Marks from the side-effecting statements, then decides the branches. A branch that turns out to
+         * be needed is marked too, and its operands can make more statements useful, so the branches are
+         * decided again until no new one is needed.
+         */
+        private void mark() {
+            marked = new BitSet(stmts.size());
+            worklist = new int[stmts.size()];
+            for (int s = 0; s < stmts.size(); s++) {
+                Ir3.Stmt stmt = stmts.get(s);
+                if (!isPure(stmt) && !(stmt instanceof Ir3.CmpStmt)) markStmt(s);
+            }
+            while (true) {
+                drainWorklist();
+                findDeadBranches();
+                boolean changed = false;
+                for (Ir3.Block block : method.blockPreOrder) {
+                    int last = blockStart[block.preOrderIndex + 1] - 1;
+                    if (!endsInBranch(block) || marked.get(last) || deadBranches.get(block.preOrderIndex)) continue;
+                    markStmt(last);
+                    changed = true;
+                }
+                if (!changed) return;
+            }
+        }
+
+        private void markStmt(int s) {
+            if (marked.get(s)) return;
+            marked.set(s);
+            worklist[worklistSize++] = s;
+        }
+
+        private void drainWorklist() {
+            while (worklistSize > 0) {
+                int s = worklist[--worklistSize];
+                Ir3.Stmt stmt = stmts.get(s);
+                for (int i = 0; i < stmt.useCount(); i++) {
+                    markReachingDefs(s, stmt.getUse(i));
+                }
+            }
+        }
+
+        /**
+         * Marks the defs of var that reach statement s: the closest one before s in its block, or
+         * else those reaching the start of the block.
+         */
+        private void markReachingDefs(int s, Ir3.Var var) {
+            BitSet defs = varDefs.get(var);
+            if (defs == null) return;
+            int b = stmtBlock[s];
+            int local = defs.previousSetBit(s - 1);
+            if (local >= blockStart[b]) {
+                markStmt(local);
+                return;
+            }
+            BitSet reaching = solver.input(method.blockPreOrder.get(b));
+            for (int d = defs.nextSetBit(0); d >= 0; d = defs.nextSetBit(d + 1)) {
+                if (reaching.get(d)) markStmt(d);
+            }
+        }
+
+        /**
+         * A branch is dead if its target and its fall-through lead to the same block through blocks
+         * that will be empty after the sweep. Blocks are visited from last to first, so that a branch
+         * found dead can empty the block it ends for the branches before it.
+         */
+        private void findDeadBranches() {
+            deadBranches = new BitSet(method.blockPreOrder.size());
+            for (int i = method.blocks.size() - 1; i >= 0; i--) {
+                Ir3.Block block = method.blocks.get(i);
+                if (!isReachable(block) || !endsInBranch(block)) continue;
+                if (marked.get(blockStart[block.preOrderIndex + 1] - 1)) continue;
+                if (resolve(block.outgoing.get(0)) == resolve(block.outgoing.get(1))) {
+                    deadBranches.set(block.preOrderIndex);
+                }
+            }
+        }
+
+        /**
+         * Follows blocks that will be empty after the sweep, apart from a jump, to the first block that
+         * will not be.
+         */
+        private Ir3.Block resolve(Ir3.Block block) {
+            for (int steps = 0; steps < method.blocks.size(); steps++) {
+                Ir3.Block next = forwardsTo(block);
+                if (next == null) return block;
+                block = next;
+            }
+            return block;
+        }
+
+        private Ir3.Block forwardsTo(Ir3.Block block) {
+            int b = block.preOrderIndex;
+            for (int s = blockStart[b]; s < blockStart[b + 1]; s++) {
+                Ir3.Stmt stmt = stmts.get(s);
+                boolean isLast = s == blockStart[b + 1] - 1;
+                if (isLast && stmt instanceof Ir3.GotoStmt) return block.outgoing.get(0);
+                if (isLast && stmt instanceof Ir3.CmpStmt && deadBranches.get(b)) return block.outgoing.get(1);
+                if (marked.get(s) || stmt instanceof Ir3.CmpStmt) return null;
+            }
+            return block.outgoing.size() == 1 ? block.outgoing.get(0) : null;
+        }
+
+        private boolean endsInBranch(Ir3.Block block) {
+            int b = block.preOrderIndex;
+            return blockStart[b + 1] > blockStart[b] && stmts.get(blockStart[b + 1] - 1) instanceof Ir3.CmpStmt;
+        }
+
+        private boolean isReachable(Ir3.Block block) {
+            int i = block.preOrderIndex;
+            return i < method.blockPreOrder.size() && method.blockPreOrder.get(i) == block;
+        }
+
+        private void sweep() {
+            for (Ir3.Block block : method.blockPreOrder) {
+                int b = block.preOrderIndex;
+                ArrayList<Ir3.Stmt> newStmts = new ArrayList<>();
+                for (int s = blockStart[b]; s < blockStart[b + 1]; s++) {
+                    if (marked.get(s)) newStmts.add(stmts.get(s));
+                }
                 block.statements = newStmts;
+
+                if (deadBranches.get(b)) { // only the fall-through is left
+                    Ir3.Block target = block.outgoing.remove(0);
+                    target.incoming.remove(block);
+                }
+            }
+        }
+
+        private void removeUnreachable() {
+            new FlowPass().createIterators(method);
+            HashSet<Ir3.Block> reachable = new HashSet<>(method.blockPreOrder);
+            ArrayList<Ir3.Block> blocks = new ArrayList<>();
+            for (Ir3.Block block : method.blocks) {
+                if (!reachable.contains(block)) continue;
+                block.incoming.removeIf(pred -> !reachable.contains(pred));
+                blocks.add(block);
             }
+            method.blocks = blocks;
+            method.flow = FlowGraph.of(blocks);
         }
-        return hasChange;
     }
 }
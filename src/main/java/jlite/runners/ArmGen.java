@@ -9,6 +9,9 @@ import jlite.parser.parser;
 import jlite.pass.ArmGenPass;
 import jlite.pass.PassManager;
 
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Arrays;
 
 public class ArmGen {
@@ -24,7 +27,9 @@ public class ArmGen {
                 passManager.run(ir3, false);
                 ArmGenPass armGenPass = new ArmGenPass();
                 Arm.Prog armProg = armGenPass.pass(ir3);
-                System.out.print(armProg.print());
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+                armProg.print(out);
+                out.flush();
             } catch (Exception e) {
                 e.printStackTrace();
             }
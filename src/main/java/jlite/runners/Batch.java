@@ -0,0 +1,174 @@
+package jlite.runners;
+
+import jlite.StaticChecker;
+import jlite.arm.Arm;
+import jlite.ir.Ir3;
+import jlite.ir.Ir3Gen;
+import jlite.parser.Ast;
+import jlite.parser.SourceBuffer;
+import jlite.parser.parser;
+import jlite.pass.ArmGenPass;
+import jlite.pass.IrDumper;
+import jlite.pass.PassManager;
+import jlite.pass.PassUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compiles many .j files to ARM on a bounded pool of worker threads.
+ * Each file is written to its own .s file, next to the source or in the directory given with -o.
+ * With -c, compiled files are kept in a cache directory of at most --cache-max-mb megabytes, and a file
+ * whose source and options have not changed is not compiled again.
+ * IR dumps (see {@link IrDumper}) are only written with -j 1.
+ * <p>
+ * Usage: Batch [-j threads] [-o outDir] [-O] [-c cacheDir [--cache-max-mb mb]] file...
+ */
+public class Batch {
+    public static void main(String[] argv) throws InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String outDir = null;
+        boolean optimize = false;
+        String cacheDir = null;
+        long cacheMaxMb = 256;
+        List<String> files = new ArrayList<>();
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-j":
+                    threads = Integer.parseInt(argv[++i]);
+                    break;
+                case "-o":
+                    outDir = argv[++i];
+                    break;
+                case "-O":
+                    optimize = true;
+                    break;
+                case "-c":
+                    cacheDir = argv[++i];
+                    break;
+                case "--cache-max-mb":
+                    cacheMaxMb = Long.parseLong(argv[++i]);
+                    break;
+                default:
+                    files.add(argv[i]);
+            }
+        }
+
+        if (threads > 1) PassUtils.disableDumpsForConcurrentCompiles();
+        if (outDir != null) {
+            new File(outDir).mkdirs();
+        }
+        CompileCache cache = cacheDir == null ? null : new CompileCache(new File(cacheDir), cacheMaxMb * 1024 * 1024);
+
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<Result>> futures = new ArrayList<>();
+        for (String fileLoc : files) {
+            String outLoc = outputFile(fileLoc, outDir);
+            boolean opt = optimize;
+            futures.add(pool.submit(() -> compile(fileLoc, outLoc, opt, cache)));
+        }
+        pool.shutdown();
+
+        List<Result> failures = new ArrayList<>();
+        long bytes = 0;
+        int spills = 0;
+        int rebuilds = 0;
+        for (Future<Result> future : futures) {
+            Result result;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                throw new AssertionError("compile task threw", e.getCause());
+            }
+            bytes += result.bytes;
+            spills += result.spills;
+            rebuilds += result.rebuilds;
+            if (result.error != null) failures.add(result);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        for (Result failure : failures) {
+            System.err.println(failure.fileLoc + ": " + failure.error);
+        }
+        System.out.println(String.format("Compiled %d/%d files in %.2fs on %d threads (%.1f files/s, %.1f KB/s), %d failed",
+                files.size() - failures.size(), files.size(), seconds, threads,
+                files.size() / seconds, bytes / 1024.0 / seconds, failures.size()));
+        System.out.println(String.format("Register allocation: %d vars spilled, %d graph rebuilds", spills, rebuilds));
+        if (cache != null) System.out.println("Cache: " + cache);
+
+        if (!failures.isEmpty()) System.exit(1);
+    }
+
+    static String outputFile(String fileLoc, String outDir) {
+        File src = new File(fileLoc);
+        String name = src.getName();
+        if (name.endsWith(".j")) name = name.substring(0, name.length() - 2);
+        File dir = outDir != null ? new File(outDir) : src.getAbsoluteFile().getParentFile();
+        return new File(dir, name + ".s").getPath();
+    }
+
+    static Result compile(String fileLoc, String outLoc, boolean optimize, CompileCache cache) {
+        Result result = new Result(fileLoc);
+        result.bytes = new File(fileLoc).length();
+        Path outPath = Paths.get(outLoc);
+        String key = null;
+        Arm.Prog armProg;
+        try {
+            SourceBuffer source = SourceBuffer.read(fileLoc);
+            if (cache != null) {
+                key = CompileCache.key(source.contents(), optimize);
+                if (cache.get(key, outPath)) return result;
+            }
+            Ast.Prog prog = parser.parse(source);
+            StaticChecker checker = new StaticChecker();
+            checker.run(prog);
+            Ir3Gen ir3Gen = new Ir3Gen();
+            Ir3.Prog ir3 = ir3Gen.gen(prog);
+            PassManager passManager = new PassManager();
+            passManager.run(ir3, optimize);
+            for (Ir3.Method method : ir3.methods) {
+                result.spills += method.spillCount;
+                result.rebuilds += method.regAllocRebuilds;
+            }
+            ArmGenPass armGenPass = new ArmGenPass();
+            armProg = armGenPass.pass(ir3);
+        } catch (Exception | Error e) {
+            result.error = e.toString();
+            return result;
+        }
+
+        try {
+            try (Writer out = Files.newBufferedWriter(outPath)) {
+                armProg.print(out);
+            }
+            if (cache != null) cache.put(key, outPath);
+        } catch (IOException e) {
+            result.error = "cannot write " + outLoc + ": " + e.getMessage();
+        }
+        return result;
+    }
+
+    static class Result {
+        final String fileLoc;
+        long bytes;
+        int spills;
+        int rebuilds;
+        String error;
+
+        Result(String fileLoc) {
+            this.fileLoc = fileLoc;
+        }
+    }
+}
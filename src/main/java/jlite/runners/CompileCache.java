@@ -0,0 +1,158 @@
+package jlite.runners;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of compiled ARM, keyed by a SHA-256 of the compiler, the compile options and the source text.
+ * The compiler is identified by a digest of its own classes, so a rebuilt compiler does not reuse the entries
+ * of an older one.
+ * Each entry is a file in the cache directory named by its key. Reading an entry marks it as recently used,
+ * and once the entries take more than maxBytes the least recently used ones are deleted.
+ * <p>
+ * Safe to share between the threads of a batch compile.
+ */
+public class CompileCache {
+    private static final String SUFFIX = ".s";
+    private static final byte[] COMPILER = compilerDigest();
+
+    private final File dir;
+    private final long maxBytes;
+    private long totalBytes;
+    public final AtomicInteger hits = new AtomicInteger();
+    public final AtomicInteger misses = new AtomicInteger();
+    public final AtomicInteger evictions = new AtomicInteger();
+
+    public CompileCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+        for (File entry : entries()) {
+            totalBytes += entry.length();
+        }
+    }
+
+    public static String key(CharSequence source, boolean optimize) {
+        MessageDigest digest = sha256();
+        digest.update(COMPILER);
+        digest.update(((optimize ? "O" : "") + "\n").getBytes(StandardCharsets.UTF_8));
+        digest.update(source.toString().getBytes(StandardCharsets.UTF_8));
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Digests the jar or class directory the compiler was loaded from. A directory is read in path order,
+     * with the path of each class, so the digest does not depend on the order the file system lists them.
+     * If the classes cannot be read, the Implementation-Version of the jar is used, and failing that a
+     * value of this process alone, so entries are only shared by compiles that are known to match.
+     */
+    private static byte[] compilerDigest() {
+        MessageDigest digest = sha256();
+        try {
+            CodeSource codeSource = CompileCache.class.getProtectionDomain().getCodeSource();
+            if (codeSource == null || codeSource.getLocation() == null) throw new IOException("no code source");
+            Path location = Paths.get(codeSource.getLocation().toURI());
+            if (Files.isDirectory(location)) {
+                List<Path> classes;
+                try (Stream<Path> walk = Files.walk(location)) {
+                    classes = walk.filter(path -> path.toString().endsWith(".class")).sorted().collect(Collectors.toList());
+                }
+                for (Path path : classes) {
+                    digest.update(location.relativize(path).toString().getBytes(StandardCharsets.UTF_8));
+                    digest.update(Files.readAllBytes(path));
+                }
+            } else {
+                digest.update(Files.readAllBytes(location));
+            }
+        } catch (IOException | URISyntaxException | IllegalArgumentException | SecurityException e) {
+            digest.reset();
+            String version = CompileCache.class.getPackage().getImplementationVersion();
+            String id = version != null ? "version " + version : "process " + UUID.randomUUID();
+            digest.update(id.getBytes(StandardCharsets.UTF_8));
+        }
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Copies the cached ARM for key to out. Returns false, leaving out alone, if there is none.
+     */
+    public boolean get(String key, Path out) throws IOException {
+        File entry = new File(dir, key + SUFFIX);
+        try {
+            Files.copy(entry.toPath(), out, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return false;
+        }
+        entry.setLastModified(System.currentTimeMillis());
+        hits.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Stores a copy of the compiled file as the entry for key.
+     */
+    public void put(String key, Path compiled) throws IOException {
+        File entry = new File(dir, key + SUFFIX);
+        File tmp = File.createTempFile("entry", ".tmp", dir);
+        Files.copy(compiled, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        synchronized (this) {
+            long replaced = entry.length(); // 0 if there is no entry yet
+            Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            totalBytes += entry.length() - replaced;
+            if (totalBytes > maxBytes) evict();
+        }
+    }
+
+    private void evict() {
+        File[] entries = entries();
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (File entry : entries) {
+            if (totalBytes <= maxBytes) return;
+            long size = entry.length();
+            if (entry.delete()) {
+                totalBytes -= size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private File[] entries() {
+        File[] entries = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        return entries == null ? new File[0] : entries;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d hits, %d misses, %d evictions, %d KB cached", hits.get(), misses.get(), evictions.get(), totalBytes / 1024);
+    }
+}
@@ -0,0 +1,272 @@
+package jlite.runners;
+
+import jlite.pass.PassUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Long-lived compile server. The JVM, the parser tables and the JIT-compiled compiler are kept between
+ * compiles, so small files are compiled without paying for startup each time.
+ * <p>
+ * Requests are read one per line, from stdin or from each connection to the Unix socket given with --socket,
+ * and each one is compiled on the worker pool. Responses are written as they finish, so they can come back
+ * in a different order than the requests were sent; each names the file it is for.
+ * <pre>
+ * compile [-O] file [outFile]   -> ok file micros | error file message
+ * stats                         -> stats count=n mean=ms p50=ms p99=ms max=ms
+ * quit                          -> stops reading from this client (stdin: stops the daemon)
+ * </pre>
+ * Only responses go to stdout. Anything the compiler itself prints goes to stderr.
+ * Each compile runs on a virtual thread of its own where the JVM has them (JDK 21). On older JVMs they share
+ * a pool of -j threads, and --socket, which needs JDK 16, is not available. IR dumps are only written with
+ * such a pool and -j 1.
+ * <p>
+ * Usage: Daemon [-j threads] [-c cacheDir [--cache-max-mb mb]] [--socket path]
+ */
+public class Daemon {
+    private final ExecutorService pool;
+    private final CompileCache cache;
+    private final LatencyStats stats = new LatencyStats();
+
+    private Daemon(int threads, CompileCache cache) {
+        this.pool = newPool(threads);
+        this.cache = cache;
+    }
+
+    public static void main(String[] argv) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String cacheDir = null;
+        long cacheMaxMb = 256;
+        String socket = null;
+
+        for (int i = 0; i < argv.length; i++) {
+            switch (argv[i]) {
+                case "-j":
+                    threads = Integer.parseInt(argv[++i]);
+                    break;
+                case "-c":
+                    cacheDir = argv[++i];
+                    break;
+                case "--cache-max-mb":
+                    cacheMaxMb = Long.parseLong(argv[++i]);
+                    break;
+                case "--socket":
+                    socket = argv[++i];
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + argv[i]);
+            }
+        }
+
+        // The parser and Ir3Gen print diagnostics to System.out, which must not end up in the responses
+        PrintStream responses = System.out;
+        System.setOut(System.err);
+
+        CompileCache cache = cacheDir == null ? null : new CompileCache(new File(cacheDir), cacheMaxMb * 1024 * 1024);
+        Daemon daemon = new Daemon(threads, cache);
+        if (socket == null) {
+            daemon.serve(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)),
+                    new PrintWriter(new OutputStreamWriter(responses, StandardCharsets.UTF_8)));
+            daemon.pool.shutdown();
+        } else {
+            daemon.listen(Paths.get(socket));
+        }
+    }
+
+    /**
+     * One virtual thread per request on JDK 21 and later, otherwise a pool of the given size. The build
+     * targets an older JDK, so the executor is looked up by reflection. Dumps are turned off unless the pool
+     * runs one compile at a time.
+     */
+    private static ExecutorService newPool(int threads) {
+        ExecutorService pool;
+        try {
+            pool = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            pool = Executors.newFixedThreadPool(Math.max(1, threads));
+            if (threads <= 1) return pool;
+        }
+        PassUtils.disableDumpsForConcurrentCompiles();
+        return pool;
+    }
+
+    private void listen(Path path) throws IOException {
+        Files.deleteIfExists(path);
+        try (ServerSocketChannel server = openUnixServer(path)) {
+            path.toFile().deleteOnExit();
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread thread = new Thread(() -> {
+                    try (SocketChannel c = client) {
+                        serve(new BufferedReader(Channels.newReader(c, StandardCharsets.UTF_8)),
+                                new PrintWriter(Channels.newWriter(c, StandardCharsets.UTF_8)));
+                    } catch (IOException e) {
+                        System.err.println("client: " + e.getMessage());
+                    }
+                }, "daemon-client");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Opens a server socket bound to the Unix domain socket at path. Unix domain sockets need JDK 16, so
+     * they are looked up by reflection, and the daemon still builds and serves stdin on older JDKs.
+     */
+    private static ServerSocketChannel openUnixServer(Path path) throws IOException {
+        ServerSocketChannel server;
+        SocketAddress address;
+        try {
+            ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+            server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class)
+                    .invoke(null, unix);
+            address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                    .getMethod("of", Path.class).invoke(null, path);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new UnsupportedOperationException("cannot open " + path, e.getCause());
+        } catch (IllegalArgumentException | ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("--socket needs JDK 16 or later", e);
+        }
+        try {
+            server.bind(address);
+        } catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        return server;
+    }
+
+    /**
+     * Reads requests until quit or end of input. Returns once every compile it started has answered.
+     */
+    private void serve(BufferedReader in, PrintWriter out) throws IOException {
+        AtomicInteger pending = new AtomicInteger();
+        String line;
+        while ((line = in.readLine()) != null) {
+            String[] words = line.trim().split("\\s+");
+            switch (words[0]) {
+                case "":
+                    break;
+                case "compile":
+                    submit(words, out, pending);
+                    break;
+                case "stats":
+                    respond(out, stats.toString());
+                    break;
+                case "quit":
+                    awaitPending(pending);
+                    return;
+                default:
+                    respond(out, "error - unknown request '" + words[0] + "'");
+            }
+        }
+        awaitPending(pending);
+    }
+
+    private void submit(String[] words, PrintWriter out, AtomicInteger pending) {
+        int i = 1;
+        boolean optimize = i < words.length && words[i].equals("-O");
+        if (optimize) i++;
+        if (i >= words.length) {
+            respond(out, "error - compile needs a file");
+            return;
+        }
+        String fileLoc = words[i];
+        String outLoc = i + 1 < words.length ? words[i + 1] : Batch.outputFile(fileLoc, null);
+        pending.incrementAndGet();
+        pool.execute(() -> {
+            long start = System.nanoTime();
+            Batch.Result result = Batch.compile(fileLoc, outLoc, optimize, cache);
+            long micros = (System.nanoTime() - start) / 1000;
+            stats.record(micros);
+            respond(out, result.error == null
+                    ? "ok " + fileLoc + " " + micros
+                    : "error " + fileLoc + " " + result.error.replace('\n', ' '));
+            synchronized (pending) {
+                pending.decrementAndGet();
+                pending.notifyAll();
+            }
+        });
+    }
+
+    private static void awaitPending(AtomicInteger pending) {
+        synchronized (pending) {
+            while (pending.get() > 0) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void respond(PrintWriter out, String response) {
+        synchronized (out) {
+            out.println(response);
+            out.flush();
+        }
+    }
+
+    /**
+     * Compile latencies, counted in power-of-two buckets of microseconds. Percentiles are reported as
+     * the upper bound of the bucket they fall in.
+     */
+    private static class LatencyStats {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long micros) {
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        private double percentileMillis(double p) {
+            long n = count.sum();
+            long seen = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                seen += buckets.get(b);
+                if (seen > 0 && seen >= p * n) return (b == 0 ? 0 : 1L << b) / 1000.0;
+            }
+            return maxMicros.get() / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            long n = count.sum();
+            return String.format("stats count=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms",
+                    n, n == 0 ? 0 : totalMicros.sum() / 1000.0 / n,
+                    percentileMillis(0.5), percentileMillis(0.99), maxMicros.get() / 1000.0);
+        }
+    }
+}
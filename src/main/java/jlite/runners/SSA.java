@@ -6,13 +6,20 @@ import jlite.parser.Ast;
 import jlite.parser.parser;
 import jlite.pass.DominancePass;
 import jlite.pass.FlowPass;
+import jlite.pass.OutOfSSAPass;
 import jlite.pass.SSAPass;
 
 import java.util.Arrays;
 
+/**
+ * Prints each program in SSA form, or with --out, after it has been translated out of SSA form again.
+ * <p>
+ * Usage: SSA [--out] file...
+ */
 public class SSA {
     public static void main(String[] argv) {
-        Arrays.stream(argv).forEach(fileLoc -> {
+        boolean out = argv.length > 0 && argv[0].equals("--out");
+        Arrays.stream(argv, out ? 1 : 0, argv.length).forEach(fileLoc -> {
             try {
                 Ast.Prog prog = parser.parse(fileLoc);
                 StaticChecker checker = new StaticChecker();
@@ -25,6 +32,10 @@ public class SSA {
                 dominancePass.pass(ir3); // Compute Dominance and Dominance Frontiers
                 SSAPass ssaPass = new SSAPass();
                 ssaPass.pass(ir3);
+                if (out) {
+                    OutOfSSAPass outOfSSAPass = new OutOfSSAPass();
+                    outOfSSAPass.pass(ir3);
+                }
                 System.out.println(ir3.print());
             } catch (Exception e) {
                 e.printStackTrace();
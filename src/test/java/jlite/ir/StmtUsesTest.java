@@ -0,0 +1,73 @@
+package jlite.ir;
+
+import jlite.parser.Ast;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class StmtUsesTest {
+    private static Ir3.Var var(String name) {
+        return new Ir3.Var(Ast.Typ.INT, name);
+    }
+
+    private static Ir3.VarRval rval(String name) {
+        return new Ir3.VarRval(var(name));
+    }
+
+    private static List<Ir3.Stmt> everyStmt() {
+        Ir3.Method callee = new Ir3.Method("f", Ast.Typ.INT);
+        Ir3.LabelStmt label = new Ir3.LabelStmt("L0");
+        return Arrays.asList(
+                new Ir3.AllocStmt(var("d"), 2),
+                new Ir3.ReadlnStmt(var("d")),
+                new Ir3.PrintlnStmt(rval("a")),
+                new Ir3.AssignStmt(var("d"), rval("a")),
+                new Ir3.ReturnStmt(rval("a")),
+                label,
+                new Ir3.GotoStmt(label),
+                new Ir3.CmpStmt(Ast.BinaryOp.LT, rval("a"), rval("b"), label),
+                new Ir3.FieldAssignStatement(var("o"), "x", rval("a")),
+                new Ir3.CallStmt(var("d"), callee, new ArrayList<>(Arrays.asList(rval("a"), new Ir3.IntRval(1), rval("b")))),
+                new Ir3.FieldAccessStatement(var("d"), var("o"), "x"),
+                new Ir3.UnaryStmt(var("d"), Ast.UnaryOp.NEGATIVE, rval("a")),
+                new Ir3.PhiStmt(var("d"), 2),
+                new Ir3.LoadStmt(var("a")),
+                new Ir3.StoreStmt(var("a")),
+                new Ir3.StackArgStmt(var("a"), 0),
+                new Ir3.PrintfStmt(new ArrayList<>(Arrays.asList(new Ir3.StringRval("%d %d"), rval("a"), rval("b")))),
+                new Ir3.BinaryStmt(var("d"), rval("a"), Ast.BinaryOp.PLUS, rval("b")),
+                new Ir3.NewStmt(var("d"), new Ir3.Data("C", new ArrayList<>())));
+    }
+
+    @Test
+    public void testSetUseReplacesOnlyThatUse() {
+        for (Ir3.Stmt stmt : everyStmt()) {
+            String name = stmt.getClass().getSimpleName();
+            for (int i = 0; i < stmt.useCount(); i++) {
+                List<Ir3.Var> before = stmt.getUses();
+                Ir3.Var replacement = var("r" + i);
+                stmt.setUse(i, replacement);
+                assertSame(name + " use " + i, replacement, stmt.getUse(i));
+                List<Ir3.Var> after = stmt.getUses();
+                assertEquals(name, before.size(), after.size());
+                for (int j = 0; j < after.size(); j++) {
+                    if (j != i) assertSame(name + " use " + j, before.get(j), after.get(j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUseCounts() {
+        int[] expected = {0, 0, 1, 1, 1, 0, 0, 2, 2, 2, 1, 1, 0, 0, 1, 1, 2, 2, 0};
+        List<Ir3.Stmt> stmts = everyStmt();
+        for (int s = 0; s < stmts.size(); s++) {
+            assertEquals(stmts.get(s).getClass().getSimpleName(), expected[s], stmts.get(s).useCount());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package jlite.pass;
+
+import jlite.ir.DominanceInfo;
+import jlite.ir.Ir3;
+import jlite.parser.Ast;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DominancePassTest {
+    private static final Ir3.Var A = new Ir3.Var(Ast.Typ.INT, "a");
+
+    private static Ir3.Stmt print() {
+        return new Ir3.PrintlnStmt(new Ir3.VarRval(A));
+    }
+
+    private static Ir3.Stmt branch(Ir3.LabelStmt label) {
+        return new Ir3.CmpStmt(Ast.BinaryOp.LT, new Ir3.VarRval(A), new Ir3.IntRval(3), label);
+    }
+
+    /**
+     * The blocks reachable from the entry without going through removed, which may be null.
+     */
+    private static boolean[] reachable(Ir3.Method method, Ir3.Block removed) {
+        boolean[] seen = new boolean[method.blocks.size()];
+        Ir3.Block entry = method.blocks.get(0);
+        if (entry == removed) return seen;
+        ArrayDeque<Ir3.Block> worklist = new ArrayDeque<>();
+        seen[entry.index] = true;
+        worklist.add(entry);
+        while (!worklist.isEmpty()) {
+            for (Ir3.Block succ : worklist.poll().outgoing) {
+                if (succ == removed || seen[succ.index]) continue;
+                seen[succ.index] = true;
+                worklist.add(succ);
+            }
+        }
+        return seen;
+    }
+
+    /**
+     * Checks dominates() and idom() against their definitions: a dominates b if b cannot be reached
+     * without going through a, and the immediate dominator of b is the strict dominator of b that all
+     * the others dominate.
+     */
+    private static void checkAgainstReachability(Ir3.Method method) {
+        int n = method.blocks.size();
+        boolean[] reach = reachable(method, null);
+        boolean[][] dom = new boolean[n][];
+        for (Ir3.Block a : method.blocks) {
+            boolean[] without = reachable(method, a);
+            dom[a.index] = new boolean[n];
+            for (Ir3.Block b : method.blocks) {
+                dom[a.index][b.index] = a == b || reach[a.index] && reach[b.index] && !without[b.index];
+            }
+        }
+
+        DominanceInfo dominance = method.dominance;
+        for (Ir3.Block a : method.blocks) {
+            for (Ir3.Block b : method.blocks) {
+                assertEquals(method.name + " " + a.index + " dom " + b.index, dom[a.index][b.index], dominance.dominates(a, b));
+            }
+        }
+        for (Ir3.Block b : method.blocks) {
+            Ir3.Block idom = null;
+            for (Ir3.Block d : method.blocks) {
+                if (d == b || !dom[d.index][b.index]) continue;
+                boolean all = true;
+                for (Ir3.Block c : method.blocks) {
+                    if (c != b && dom[c.index][b.index] && !dom[c.index][d.index]) all = false;
+                }
+                if (all) idom = d;
+            }
+            assertSame(method.name + " idom " + b.index, idom, dominance.idom(b));
+        }
+    }
+
+    @Test
+    public void testBackEdgesToEntryAndUnreachableBlock() {
+        Ir3.Method method = new Ir3.Method("loops", Ast.Typ.VOID);
+        Ir3.LabelStmt entryLabel = new Ir3.LabelStmt("L0");
+        Ir3.LabelStmt second = new Ir3.LabelStmt("L2");
+        Ir3.LabelStmt dead = new Ir3.LabelStmt("L4");
+        Ir3.LabelStmt exit = new Ir3.LabelStmt("L6");
+        method.statements.add(entryLabel);
+        method.statements.add(print());
+        method.statements.add(branch(second));
+        method.statements.add(print());
+        method.statements.add(new Ir3.GotoStmt(entryLabel)); // back edge to the entry
+        method.statements.add(second);
+        method.statements.add(print());
+        method.statements.add(branch(entryLabel)); // and another one
+        method.statements.add(print());
+        method.statements.add(new Ir3.GotoStmt(exit));
+        method.statements.add(dead); // nothing jumps here, but it jumps into the loop
+        method.statements.add(print());
+        method.statements.add(new Ir3.GotoStmt(second));
+        method.statements.add(exit);
+        method.statements.add(new Ir3.ReturnStmt(null));
+        new FlowPass().doMethod(method);
+        new DominancePass().pass(method);
+
+        assertEquals(6, method.blocks.size());
+        Ir3.Block entry = method.blocks.get(0);
+        Ir3.Block unreachable = method.blocks.get(4);
+        assertEquals(2, entry.incoming.size());
+        assertTrue(method.blocks.get(2).incoming.contains(unreachable));
+        DominanceInfo dominance = method.dominance;
+        assertNull(dominance.idom(entry));
+        assertNull(dominance.idom(unreachable));
+        assertSame(entry, dominance.idom(method.blocks.get(1)));
+        assertSame(entry, dominance.idom(method.blocks.get(2)));
+        assertSame(method.blocks.get(2), dominance.idom(method.blocks.get(3)));
+        assertSame(method.blocks.get(3), dominance.idom(method.blocks.get(5)));
+        assertTrue(dominance.dominates(unreachable, unreachable));
+        assertFalse(dominance.dominates(entry, unreachable));
+        assertFalse(dominance.dominates(unreachable, method.blocks.get(2)));
+        checkAgainstReachability(method);
+    }
+
+    @Test
+    public void testRandomGraphsMatchReachability() {
+        Random random = new Random(22);
+        for (int m = 0; m < 200; m++) {
+            int n = 1 + random.nextInt(40);
+            Ir3.Method method = new Ir3.Method("m" + m, Ast.Typ.VOID);
+            Ir3.LabelStmt[] labels = new Ir3.LabelStmt[n];
+            for (int i = 0; i < n; i++) {
+                labels[i] = new Ir3.LabelStmt("L" + i);
+            }
+            for (int i = 0; i < n; i++) {
+                method.statements.add(labels[i]);
+                method.statements.add(print());
+                int k = random.nextInt(10);
+                if (k < 3) {
+                    method.statements.add(new Ir3.GotoStmt(labels[random.nextInt(n)]));
+                } else if (k < 7) {
+                    method.statements.add(branch(labels[random.nextInt(n)]));
+                } else if (k < 8) {
+                    method.statements.add(new Ir3.ReturnStmt(null));
+                }
+            }
+            method.statements.add(new Ir3.ReturnStmt(null));
+            new FlowPass().doMethod(method);
+            new DominancePass().pass(method);
+            checkAgainstReachability(method);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+import jlite.parser.Ast;
+
+/**
+ * Builders for the int vars and rvals the pass tests put into hand-written methods. Public so the tests of
+ * jlite.pass.optimizations can use them too.
+ */
+public final class Ir3Fixtures {
+    private Ir3Fixtures() {
+    }
+
+    public static Ir3.Var local(Ir3.Method method, String name) {
+        Ir3.Var var = new Ir3.Var(Ast.Typ.INT, name);
+        method.locals.add(var);
+        return var;
+    }
+
+    public static Ir3.Var arg(Ir3.Method method, String name) {
+        Ir3.Var var = new Ir3.Var(Ast.Typ.INT, name);
+        method.args.add(var);
+        return var;
+    }
+
+    public static Ir3.VarRval use(Ir3.Var var) {
+        return new Ir3.VarRval(var);
+    }
+}
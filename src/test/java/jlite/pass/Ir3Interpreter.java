@@ -0,0 +1,157 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+import jlite.parser.Ast;
+
+import java.util.HashMap;
+
+/**
+ * Runs a method over its blocks, for the int statements the pass tests build, and returns what it
+ * printed. The phis of a block are run on entry, reading all their args before writing any of them.
+ * Vars that were never assigned read as 0.
+ * <p>
+ * After register allocation, runOnRegisters keeps each var in the register it was given instead, and
+ * spilled vars in memory between their stores and loads, so two vars wrongly sharing a register change the
+ * output.
+ */
+class Ir3Interpreter {
+    private static final int MAX_BLOCKS = 10000;
+
+    static String run(Ir3.Method method, int... argValues) {
+        return checkReturned(runFor(MAX_BLOCKS, method, argValues));
+    }
+
+    static String runOnRegisters(Ir3.Method method, int... argValues) {
+        return checkReturned(runFor(MAX_BLOCKS, new Frame(true), method, argValues));
+    }
+
+    private static String checkReturned(String out) {
+        if (out.endsWith("timeout")) throw new AssertionError("no return after " + MAX_BLOCKS + " blocks");
+        return out;
+    }
+
+    /**
+     * Runs at most maxBlocks blocks, and ends the output with "timeout" if the method has not returned by
+     * then. Passes that keep the blocks stop at the same point, so their outputs can still be compared.
+     */
+    static String runFor(int maxBlocks, Ir3.Method method, int... argValues) {
+        return runFor(maxBlocks, new Frame(false), method, argValues);
+    }
+
+    private static String runFor(int maxBlocks, Frame env, Ir3.Method method, int... argValues) {
+        for (int i = 0; i < argValues.length; i++) {
+            env.put(method.args.get(i), argValues[i]);
+        }
+        StringBuilder out = new StringBuilder();
+        Ir3.Block block = method.blocks.get(0);
+        Ir3.Block prev = null;
+        for (int visits = 0; block != null; visits++) {
+            if (visits == maxBlocks) return out.append("timeout").toString();
+            if (prev != null && !block.phis.isEmpty()) {
+                int k = block.incoming.indexOf(prev);
+                int[] values = new int[block.phis.size()];
+                for (int p = 0; p < values.length; p++) {
+                    values[p] = env.get(block.phis.get(p).args.get(k));
+                }
+                for (int p = 0; p < values.length; p++) {
+                    env.put(block.phis.get(p).var, values[p]);
+                }
+            }
+
+            Ir3.Block next = block.outgoing.isEmpty() ? null : block.outgoing.get(0);
+            for (Ir3.Stmt stmt : block.statements) {
+                if (stmt instanceof Ir3.AssignStmt) {
+                    Ir3.AssignStmt assignStmt = (Ir3.AssignStmt) stmt;
+                    env.put(assignStmt.var, value(env, assignStmt.rval));
+                } else if (stmt instanceof Ir3.BinaryStmt) {
+                    Ir3.BinaryStmt binaryStmt = (Ir3.BinaryStmt) stmt;
+                    env.put(binaryStmt.dst, apply(binaryStmt.op, value(env, binaryStmt.lhs), value(env, binaryStmt.rhs)));
+                } else if (stmt instanceof Ir3.PrintlnStmt) {
+                    out.append(value(env, ((Ir3.PrintlnStmt) stmt).rval)).append('\n');
+                } else if (stmt instanceof Ir3.CmpStmt) {
+                    Ir3.CmpStmt cmpStmt = (Ir3.CmpStmt) stmt;
+                    boolean taken = apply(cmpStmt.op, value(env, cmpStmt.lRv), value(env, cmpStmt.rRv)) != 0;
+                    next = block.outgoing.get(taken ? 0 : 1);
+                } else if (stmt instanceof Ir3.LoadStmt) {
+                    env.load(((Ir3.LoadStmt) stmt).var);
+                } else if (stmt instanceof Ir3.StoreStmt) {
+                    env.store(((Ir3.StoreStmt) stmt).var);
+                } else if (stmt instanceof Ir3.ReturnStmt) {
+                    return out.toString();
+                } else if (!(stmt instanceof Ir3.GotoStmt || stmt instanceof Ir3.LabelStmt)) {
+                    throw new AssertionError("cannot run " + stmt.print(0));
+                }
+            }
+            prev = block;
+            block = next;
+        }
+        return out.toString();
+    }
+
+    private static int value(Frame env, Ir3.Rval rval) {
+        if (rval instanceof Ir3.IntRval) return ((Ir3.IntRval) rval).i;
+        if (rval instanceof Ir3.VarRval) return env.get(((Ir3.VarRval) rval).var);
+        throw new AssertionError("cannot run " + rval.print());
+    }
+
+    private static int apply(Ast.BinaryOp op, int a, int b) {
+        switch (op) {
+            case PLUS:
+                return a + b;
+            case MINUS:
+                return a - b;
+            case MULT:
+                return a * b;
+            case LT:
+                return a < b ? 1 : 0;
+            case GT:
+                return a > b ? 1 : 0;
+            case LEQ:
+                return a <= b ? 1 : 0;
+            case GEQ:
+                return a >= b ? 1 : 0;
+            case EQ:
+                return a == b ? 1 : 0;
+            case NEQ:
+                return a != b ? 1 : 0;
+            default:
+                throw new AssertionError("cannot run " + op);
+        }
+    }
+
+    /**
+     * The values of the vars, kept by var, or by register with a separate memory for spilled vars. Loads
+     * and stores only move values in the latter.
+     */
+    private static class Frame {
+        private final boolean registers;
+        private final HashMap<Object, Integer> values = new HashMap<>();
+        private final HashMap<Ir3.Var, Integer> memory = new HashMap<>();
+
+        Frame(boolean registers) {
+            this.registers = registers;
+        }
+
+        private Object key(Ir3.Var var) {
+            if (!registers) return var;
+            if (var.reg < 0) throw new AssertionError(var.name + " has no register");
+            return var.reg;
+        }
+
+        int get(Ir3.Var var) {
+            return values.getOrDefault(key(var), 0);
+        }
+
+        void put(Ir3.Var var, int value) {
+            values.put(key(var), value);
+        }
+
+        void load(Ir3.Var var) {
+            if (registers) put(var, memory.getOrDefault(var, 0));
+        }
+
+        void store(Ir3.Var var) {
+            if (registers) memory.put(var, get(var));
+        }
+    }
+}
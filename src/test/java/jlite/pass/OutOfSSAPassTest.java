@@ -0,0 +1,149 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+import jlite.parser.Ast;
+import org.junit.Test;
+
+import static jlite.pass.Ir3Fixtures.arg;
+import static jlite.pass.Ir3Fixtures.local;
+import static jlite.pass.Ir3Fixtures.use;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class OutOfSSAPassTest {
+    private static void addPhi(Ir3.Block join, Ir3.Var var, Ir3.Block pred, Ir3.Var fromPred,
+                               Ir3.Block other, Ir3.Var fromOther) {
+        Ir3.PhiStmt phi = new Ir3.PhiStmt(var, 2);
+        phi.args.set(join.incoming.indexOf(pred), fromPred);
+        phi.args.set(join.incoming.indexOf(other), fromOther);
+        join.phis.add(phi);
+    }
+
+    private static boolean defines(Ir3.Method method, Ir3.Var var) {
+        for (Ir3.Block block : method.blocks) {
+            for (Ir3.Stmt stmt : block.statements) {
+                for (int i = 0; i < stmt.defCount(); i++) {
+                    if (stmt.getDef(i) == var) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testRotationUsesSpareVar() {
+        // a, b and c swap places on every trip around the loop, a cycle of copies with no free var
+        Ir3.Method method = new Ir3.Method("rotate", Ast.Typ.VOID);
+        Ir3.Var a0 = local(method, "a0"), b0 = local(method, "b0"), c0 = local(method, "c0"), i0 = local(method, "i0");
+        Ir3.Var a1 = local(method, "a1"), b1 = local(method, "b1"), c1 = local(method, "c1");
+        Ir3.Var i1 = local(method, "i1"), i2 = local(method, "i2");
+        Ir3.LabelStmt loop = new Ir3.LabelStmt("L1");
+        method.statements.add(new Ir3.AssignStmt(a0, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.AssignStmt(b0, new Ir3.IntRval(2)));
+        method.statements.add(new Ir3.AssignStmt(c0, new Ir3.IntRval(3)));
+        method.statements.add(new Ir3.AssignStmt(i0, new Ir3.IntRval(0)));
+        method.statements.add(loop);
+        method.statements.add(new Ir3.PrintlnStmt(use(a1)));
+        method.statements.add(new Ir3.PrintlnStmt(use(b1)));
+        method.statements.add(new Ir3.PrintlnStmt(use(c1)));
+        method.statements.add(new Ir3.BinaryStmt(i2, use(i1), Ast.BinaryOp.PLUS, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.CmpStmt(Ast.BinaryOp.LT, use(i2), new Ir3.IntRval(4), loop));
+        method.statements.add(new Ir3.ReturnStmt(null));
+        new FlowPass().doMethod(method);
+        Ir3.Block entry = method.blocks.get(0);
+        Ir3.Block body = method.blocks.get(1);
+        addPhi(body, a1, entry, a0, body, b1);
+        addPhi(body, b1, entry, b0, body, c1);
+        addPhi(body, c1, entry, c0, body, a1);
+        addPhi(body, i1, entry, i0, body, i2);
+
+        String expected = "1\n2\n3\n2\n3\n1\n3\n1\n2\n1\n2\n3\n";
+        assertEquals(expected, Ir3Interpreter.run(method));
+        new OutOfSSAPass().pass(method);
+        assertEquals(expected, Ir3Interpreter.run(method));
+        boolean spare = false;
+        for (Ir3.Var local : method.locals) {
+            spare |= local.name.startsWith("%c");
+        }
+        assertTrue(spare);
+        for (Ir3.Block block : method.blocks) {
+            assertTrue(block.phis.isEmpty());
+        }
+    }
+
+    @Test
+    public void testSplitsFallThroughCriticalEdge() {
+        // The entry falls through into the join, and the loop back from L3 also reaches it
+        Ir3.Method method = new Ir3.Method("fallThrough", Ast.Typ.VOID);
+        Ir3.Var x = arg(method, "x");
+        Ir3.Var a0 = local(method, "a0"), a1 = local(method, "a1"), a2 = local(method, "a2");
+        Ir3.LabelStmt join = new Ir3.LabelStmt("L1");
+        Ir3.LabelStmt other = new Ir3.LabelStmt("L3");
+        method.statements.add(new Ir3.AssignStmt(a0, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.CmpStmt(Ast.BinaryOp.LT, use(x), new Ir3.IntRval(0), other));
+        method.statements.add(join);
+        method.statements.add(new Ir3.PrintlnStmt(use(a1)));
+        method.statements.add(new Ir3.PrintlnStmt(use(a0)));
+        method.statements.add(new Ir3.ReturnStmt(null));
+        method.statements.add(other);
+        method.statements.add(new Ir3.AssignStmt(a2, new Ir3.IntRval(5)));
+        method.statements.add(new Ir3.GotoStmt(join));
+        method.statements.add(new Ir3.ReturnStmt(null)); // the last block has no edges
+        new FlowPass().doMethod(method);
+        Ir3.Block entry = method.blocks.get(0);
+        Ir3.Block joinBlock = method.blocks.get(1);
+        Ir3.Block otherBlock = method.blocks.get(2);
+        assertSame(joinBlock, entry.outgoing.get(1));
+        addPhi(joinBlock, a1, entry, a0, otherBlock, a2);
+
+        new OutOfSSAPass().pass(method);
+        assertEquals(5, method.blocks.size());
+        Ir3.Block split = method.blocks.get(4);
+        assertSame(otherBlock, entry.outgoing.get(0));
+        assertSame(split, entry.outgoing.get(1));
+        assertSame(joinBlock, split.outgoing.get(0));
+        assertTrue(joinBlock.incoming.contains(split));
+        assertFalse(joinBlock.incoming.contains(entry));
+        Ir3.CmpStmt cmpStmt = (Ir3.CmpStmt) entry.statements.get(entry.statements.size() - 1);
+        assertSame(otherBlock.labelStmt, cmpStmt.getLabel());
+
+        // a0 is still live in the join, so the copy into a1 stays, on the new block only
+        assertEquals(2, split.statements.size());
+        Ir3.GotoStmt gotoStmt = (Ir3.GotoStmt) split.statements.get(1);
+        assertSame(joinBlock.labelStmt, gotoStmt.getLabel());
+        assertEquals("1\n1\n", Ir3Interpreter.run(method, 0));
+        assertEquals("5\n1\n", Ir3Interpreter.run(method, -1));
+    }
+
+    @Test
+    public void testNeverMergesTwoArgs() {
+        // p and q are only live in their own branches, so nothing but their being args keeps them apart
+        Ir3.Method method = new Ir3.Method("args", Ast.Typ.VOID);
+        Ir3.Var p = arg(method, "p"), q = arg(method, "q"), x = arg(method, "x");
+        Ir3.Var r = local(method, "r");
+        Ir3.LabelStmt right = new Ir3.LabelStmt("L2");
+        Ir3.LabelStmt join = new Ir3.LabelStmt("L3");
+        method.statements.add(new Ir3.CmpStmt(Ast.BinaryOp.LT, use(x), new Ir3.IntRval(0), right));
+        method.statements.add(new Ir3.AssignStmt(p, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.GotoStmt(join));
+        method.statements.add(right);
+        method.statements.add(new Ir3.AssignStmt(q, new Ir3.IntRval(2)));
+        method.statements.add(new Ir3.GotoStmt(join));
+        method.statements.add(join);
+        method.statements.add(new Ir3.PrintlnStmt(use(r)));
+        method.statements.add(new Ir3.ReturnStmt(null));
+        new FlowPass().doMethod(method);
+        addPhi(method.blocks.get(3), r, method.blocks.get(1), p, method.blocks.get(2), q);
+
+        new OutOfSSAPass().pass(method);
+        assertSame(p, method.args.get(0));
+        assertSame(q, method.args.get(1));
+        assertTrue(defines(method, p));
+        assertTrue(defines(method, q));
+        assertFalse(method.locals.contains(r));
+        assertEquals("1\n", Ir3Interpreter.run(method, 0, 0, 0));
+        assertEquals("2\n", Ir3Interpreter.run(method, 0, 0, -1));
+    }
+}
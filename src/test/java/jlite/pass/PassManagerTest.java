@@ -0,0 +1,44 @@
+package jlite.pass;
+
+import jlite.StaticChecker;
+import jlite.ir.Ir3;
+import jlite.ir.Ir3Gen;
+import jlite.parser.Ast;
+import jlite.parser.parser;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class PassManagerTest {
+    private Ir3.Prog compile(String fileLoc, int parallelism) throws Exception {
+        return compile(fileLoc, parallelism, false);
+    }
+
+    private Ir3.Prog compile(String fileLoc, int parallelism, boolean ssa) throws Exception {
+        Ast.Prog prog = parser.parse(fileLoc);
+        new StaticChecker().run(prog);
+        Ir3.Prog ir3 = new Ir3Gen().gen(prog);
+        new PassManager(parallelism, ssa).run(ir3, false);
+        return ir3;
+    }
+
+    @Test
+    public void testParallelMatchesSerial() throws Exception {
+        String[] files = {"./test/arm/call.j", "./test/arm/stack.j", "./test/arm/factorial.j", "./test/arm/fields.j"};
+        for (String file : files) {
+            String serial = compile(file, 1).print();
+            String parallel = compile(file, 4).print();
+            assertEquals(file, serial, parallel);
+        }
+    }
+
+    @Test
+    public void testSsaParallelMatchesSerial() throws Exception {
+        String[] files = {"./test/arm/call.j", "./test/arm/stack.j", "./test/arm/factorial.j", "./test/arm/fields.j"};
+        for (String file : files) {
+            String serial = compile(file, 1, true).print();
+            String parallel = compile(file, 4, true).print();
+            assertEquals(file, serial, parallel);
+        }
+    }
+}
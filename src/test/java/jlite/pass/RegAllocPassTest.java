@@ -0,0 +1,46 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+import jlite.parser.Ast;
+import org.junit.Test;
+
+import static jlite.pass.Ir3Fixtures.arg;
+import static jlite.pass.Ir3Fixtures.local;
+import static jlite.pass.Ir3Fixtures.use;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegAllocPassTest {
+    @Test
+    public void testRespillRoundStillSpillsTheOthers() {
+        // The four args hold r0 to r3 throughout and ten vars are live at once, so the first round spills.
+        // A later round cannot colour one of the spilled vars either, next to vars that were never spilled.
+        Ir3.Method method = new Ir3.Method("pressure", Ast.Typ.VOID);
+        Ir3.Var[] args = {arg(method, "a"), arg(method, "b"), arg(method, "c"), arg(method, "d")};
+        Ir3.Var[] v = new Ir3.Var[10];
+        for (int i = 0; i < v.length; i++) {
+            v[i] = local(method, "v" + i);
+            method.statements.add(new Ir3.BinaryStmt(v[i], use(args[0]), Ast.BinaryOp.PLUS, new Ir3.IntRval(i)));
+        }
+        method.statements.add(new Ir3.BinaryStmt(v[4], use(v[0]), Ast.BinaryOp.PLUS, use(v[1])));
+        method.statements.add(new Ir3.BinaryStmt(v[8], use(v[9]), Ast.BinaryOp.PLUS, use(v[4])));
+        method.statements.add(new Ir3.BinaryStmt(v[9], use(v[5]), Ast.BinaryOp.PLUS, use(v[2])));
+        method.statements.add(new Ir3.BinaryStmt(v[7], use(args[0]), Ast.BinaryOp.PLUS, use(v[6])));
+        for (Ir3.Var var : v) {
+            method.statements.add(new Ir3.PrintlnStmt(use(var)));
+        }
+        for (Ir3.Var var : args) {
+            method.statements.add(new Ir3.PrintlnStmt(use(var)));
+        }
+        method.statements.add(new Ir3.ReturnStmt(null));
+        new FlowPass().doMethod(method);
+        String expected = Ir3Interpreter.run(method, 3, 5, 7, 9);
+
+        new RegAllocPass().pass(method);
+        assertTrue(method.regAllocRebuilds >= 2);
+        for (Ir3.Var var : method.liveness.vars) {
+            assertTrue(var.name, var.reg >= 0 && var.reg < 12);
+        }
+        assertEquals(expected, Ir3Interpreter.runOnRegisters(method, 3, 5, 7, 9));
+    }
+}
@@ -0,0 +1,282 @@
+package jlite.pass;
+
+import jlite.ir.Ir3;
+import jlite.parser.Ast;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static jlite.pass.Ir3Fixtures.arg;
+import static jlite.pass.Ir3Fixtures.local;
+import static jlite.pass.Ir3Fixtures.use;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SSAPassTest {
+    private static void toSSA(Ir3.Method method, SSAPass.Form form) {
+        new FlowPass().doMethod(method);
+        new DominancePass().pass(method);
+        new SSAPass(form).pass(method);
+    }
+
+    /**
+     * x is live into the join, y is used before its def in a block but dead at the join, and t is only
+     * used right after its def in each block.
+     */
+    private static Ir3.Method diamond() {
+        Ir3.Method method = new Ir3.Method("diamond", Ast.Typ.VOID);
+        Ir3.Var a = arg(method, "a");
+        Ir3.Var x = local(method, "x"), y = local(method, "y"), t = local(method, "t");
+        Ir3.LabelStmt join = new Ir3.LabelStmt("L2");
+        method.statements.add(new Ir3.AssignStmt(x, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.AssignStmt(y, new Ir3.IntRval(0)));
+        method.statements.add(new Ir3.AssignStmt(t, new Ir3.IntRval(2)));
+        method.statements.add(new Ir3.PrintlnStmt(use(t)));
+        method.statements.add(new Ir3.CmpStmt(Ast.BinaryOp.LT, use(a), new Ir3.IntRval(3), join));
+        method.statements.add(new Ir3.PrintlnStmt(use(y)));
+        method.statements.add(new Ir3.AssignStmt(y, new Ir3.IntRval(5)));
+        method.statements.add(new Ir3.AssignStmt(x, new Ir3.IntRval(3)));
+        method.statements.add(new Ir3.AssignStmt(t, new Ir3.IntRval(4)));
+        method.statements.add(new Ir3.PrintlnStmt(use(t)));
+        method.statements.add(join);
+        method.statements.add(new Ir3.PrintlnStmt(use(x)));
+        method.statements.add(new Ir3.ReturnStmt(null));
+        return method;
+    }
+
+    private static int phiCount(Ir3.Method method) {
+        int phis = 0;
+        for (Ir3.Block block : method.blocks) {
+            phis += block.phis.size();
+        }
+        return phis;
+    }
+
+    @Test
+    public void testPhiCountsOfEachForm() {
+        int[] expected = {3, 2, 1}; // x, y and t; x and y; only x
+        for (SSAPass.Form form : SSAPass.Form.values()) {
+            Ir3.Method method = diamond();
+            toSSA(method, form);
+            assertEquals(form.toString(), expected[form.ordinal()], phiCount(method));
+            assertEquals(form.toString(), expected[form.ordinal()], method.blocks.get(2).phis.size());
+        }
+    }
+
+    /**
+     * In SSA form each var has at most one def, and that def dominates every use. A use in a phi is on
+     * the edge from its predecessor, so the def must dominate that predecessor. Vars with no def are the
+     * args and the values that are undefined on some path.
+     */
+    private static void checkSingleDefDominatesUses(Ir3.Method method) {
+        HashMap<Ir3.Var, Ir3.Block> defBlock = new HashMap<>();
+        HashMap<Ir3.Var, Integer> defPos = new HashMap<>(); // -1 for a phi
+        HashSet<Ir3.Block> reachable = new HashSet<>(method.dominance.preorder);
+        for (Ir3.Block block : method.dominance.preorder) {
+            for (Ir3.PhiStmt phi : block.phis) {
+                assertTrue(phi.var.name, defBlock.put(phi.var, block) == null);
+                defPos.put(phi.var, -1);
+            }
+            for (int s = 0; s < block.statements.size(); s++) {
+                Ir3.Stmt stmt = block.statements.get(s);
+                for (int i = 0; i < stmt.defCount(); i++) {
+                    assertTrue(stmt.getDef(i).name, defBlock.put(stmt.getDef(i), block) == null);
+                    defPos.put(stmt.getDef(i), s);
+                }
+            }
+        }
+
+        for (Ir3.Block block : method.dominance.preorder) {
+            for (Ir3.PhiStmt phi : block.phis) {
+                for (int k = 0; k < phi.args.size(); k++) {
+                    Ir3.Block pred = block.incoming.get(k);
+                    Ir3.Block def = defBlock.get(phi.args.get(k));
+                    if (def == null || !reachable.contains(pred)) continue;
+                    assertTrue(phi.var.name, method.dominance.dominates(def, pred));
+                }
+            }
+            for (int s = 0; s < block.statements.size(); s++) {
+                Ir3.Stmt stmt = block.statements.get(s);
+                for (int i = 0; i < stmt.useCount(); i++) {
+                    Ir3.Var var = stmt.getUse(i);
+                    Ir3.Block def = defBlock.get(var);
+                    if (def == null) continue;
+                    assertTrue(var.name, method.dominance.dominates(def, block));
+                    if (def == block) assertTrue(var.name, defPos.get(var) < s);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSingleDefDominatesUses() {
+        Random random = new Random(23);
+        for (int m = 0; m < 200; m++) {
+            for (SSAPass.Form form : SSAPass.Form.values()) {
+                Ir3.Method method = randomMethod(new Random(random.nextLong()), 1 + m % 40);
+                toSSA(method, form);
+                checkSingleDefDominatesUses(method);
+            }
+        }
+    }
+
+    /**
+     * A method of n chunks that redefine a, b and c and jump around at random.
+     */
+    private static Ir3.Method randomMethod(Random random, int n) {
+        Ir3.Method method = new Ir3.Method("random", Ast.Typ.VOID);
+        Ir3.Var[] vars = {local(method, "a"), local(method, "b"), local(method, "c")};
+        Ir3.LabelStmt[] labels = new Ir3.LabelStmt[n];
+        for (int i = 0; i < n; i++) {
+            labels[i] = new Ir3.LabelStmt("L" + i);
+        }
+        for (int i = 0; i < n; i++) {
+            method.statements.add(labels[i]);
+            Ir3.Var dst = vars[random.nextInt(3)];
+            method.statements.add(new Ir3.BinaryStmt(dst, use(vars[random.nextInt(3)]), Ast.BinaryOp.PLUS, use(vars[random.nextInt(3)])));
+            if (random.nextBoolean()) method.statements.add(new Ir3.PrintlnStmt(use(vars[random.nextInt(3)])));
+            int k = random.nextInt(10);
+            if (k < 3) {
+                method.statements.add(new Ir3.GotoStmt(labels[random.nextInt(n)]));
+            } else if (k < 7) {
+                method.statements.add(new Ir3.CmpStmt(Ast.BinaryOp.LT, use(vars[0]), new Ir3.IntRval(3), labels[random.nextInt(n)]));
+            }
+        }
+        method.statements.add(new Ir3.PrintlnStmt(use(vars[0])));
+        method.statements.add(new Ir3.ReturnStmt(null));
+        return method;
+    }
+
+    /**
+     * x and y swap on each trip around the loop, so the phis of the loop read each other's values from
+     * the last trip.
+     */
+    private static Ir3.Method swap() {
+        Ir3.Method method = new Ir3.Method("swap", Ast.Typ.VOID);
+        Ir3.Var x = local(method, "x"), y = local(method, "y"), tmp = local(method, "tmp"), i = local(method, "i");
+        Ir3.LabelStmt loop = new Ir3.LabelStmt("L1");
+        method.statements.add(new Ir3.AssignStmt(x, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.AssignStmt(y, new Ir3.IntRval(2)));
+        method.statements.add(new Ir3.AssignStmt(i, new Ir3.IntRval(0)));
+        method.statements.add(loop);
+        method.statements.add(new Ir3.PrintlnStmt(use(x)));
+        method.statements.add(new Ir3.AssignStmt(tmp, use(x)));
+        method.statements.add(new Ir3.AssignStmt(x, use(y)));
+        method.statements.add(new Ir3.AssignStmt(y, use(tmp)));
+        method.statements.add(new Ir3.BinaryStmt(i, use(i), Ast.BinaryOp.PLUS, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.CmpStmt(Ast.BinaryOp.LT, use(i), new Ir3.IntRval(3), loop));
+        method.statements.add(new Ir3.PrintlnStmt(use(y)));
+        method.statements.add(new Ir3.ReturnStmt(null));
+        return method;
+    }
+
+    @Test
+    public void testLoopCarriedSwap() {
+        String expected = "1\n2\n1\n1\n";
+        Ir3.Method original = swap();
+        new FlowPass().doMethod(original);
+        assertEquals(expected, Ir3Interpreter.run(original));
+        for (SSAPass.Form form : SSAPass.Form.values()) {
+            Ir3.Method method = swap();
+            toSSA(method, form);
+            assertEquals(form.toString(), expected, Ir3Interpreter.run(method));
+        }
+    }
+
+    @Test
+    public void testRandomProgramsKeepTheirOutput() {
+        Random random = new Random(24);
+        for (int m = 0; m < 300; m++) {
+            long seed = random.nextLong();
+            int n = 2 + m % 30;
+            Ir3.Method original = randomMethod(new Random(seed), n);
+            new FlowPass().doMethod(original);
+            String expected = Ir3Interpreter.runFor(500, original);
+            for (SSAPass.Form form : SSAPass.Form.values()) {
+                Ir3.Method method = randomMethod(new Random(seed), n);
+                toSSA(method, form);
+                assertEquals(seed + " " + form, expected, Ir3Interpreter.runFor(500, method));
+            }
+        }
+    }
+
+    @Test
+    public void testLocalsStayWithTheirMethod() {
+        // One SSAPass renames both methods, and each must end up with only its own versions as locals
+        List<Ir3.Method> methods = new ArrayList<>();
+        for (int m = 0; m < 2; m++) {
+            methods.add(randomMethod(new Random(m), 8));
+        }
+        Ir3.Prog prog = new Ir3.Prog(new ArrayList<>(), new ArrayList<>(methods));
+        new FlowPass().pass(prog);
+        new DominancePass().pass(prog);
+        new SSAPass().pass(prog);
+
+        for (Ir3.Method method : methods) {
+            HashSet<Ir3.Var> seen = new HashSet<>();
+            for (Ir3.Block block : method.blocks) {
+                for (Ir3.PhiStmt phi : block.phis) {
+                    seen.add(phi.var);
+                }
+                for (Ir3.Stmt stmt : block.statements) {
+                    for (int i = 0; i < stmt.defCount(); i++) {
+                        seen.add(stmt.getDef(i));
+                    }
+                    for (int i = 0; i < stmt.useCount(); i++) {
+                        seen.add(stmt.getUse(i));
+                    }
+                }
+            }
+            assertFalse(method.locals.isEmpty());
+            assertEquals(method.locals.size(), new HashSet<>(method.locals).size());
+            for (Ir3.Var local : method.locals) {
+                assertTrue(local.name, seen.contains(local));
+            }
+        }
+    }
+
+    @Test
+    public void testFieldAssignTargetGetsPhi() {
+        // o is only used as the object of a field store after the join, which needs a phi in pruned form
+        Ir3.Method method = new Ir3.Method("store", Ast.Typ.VOID);
+        Ir3.Var a = arg(method, "a");
+        Ir3.Var o = local(method, "o");
+        Ir3.LabelStmt join = new Ir3.LabelStmt("L2");
+        Ir3.FieldAssignStatement store = new Ir3.FieldAssignStatement(o, "f", new Ir3.IntRval(1));
+        method.statements.add(new Ir3.AssignStmt(o, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.CmpStmt(Ast.BinaryOp.LT, use(a), new Ir3.IntRval(3), join));
+        method.statements.add(new Ir3.AssignStmt(o, new Ir3.IntRval(2)));
+        method.statements.add(join);
+        method.statements.add(store);
+        method.statements.add(new Ir3.ReturnStmt(null));
+        toSSA(method, SSAPass.Form.PRUNED);
+
+        Ir3.Block joinBlock = method.blocks.get(2);
+        assertEquals(1, joinBlock.phis.size());
+        Ir3.PhiStmt phi = joinBlock.phis.get(0);
+        assertSame(phi.var, store.target);
+        assertNotSame(phi.args.get(0), phi.args.get(1));
+        assertFalse(method.locals.contains(o));
+    }
+
+    @Test
+    public void testFieldAssignTargetInterferes() {
+        // o must keep its register until the store, or t would be allocated over the object ref
+        Ir3.Method method = new Ir3.Method("store", Ast.Typ.VOID);
+        Ir3.Var o = local(method, "o"), t = local(method, "t");
+        method.statements.add(new Ir3.AssignStmt(o, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.AssignStmt(t, new Ir3.IntRval(5)));
+        method.statements.add(new Ir3.FieldAssignStatement(o, "f", use(t)));
+        method.statements.add(new Ir3.ReturnStmt(null));
+        new FlowPass().doMethod(method);
+        new LivePass().pass(method);
+        assertTrue(new RegisterInterferenceGraph(method).interferes(o, t));
+    }
+}
@@ -0,0 +1,108 @@
+package jlite.pass.optimizations;
+
+import jlite.ir.Ir3;
+import jlite.parser.Ast;
+import jlite.pass.FlowPass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static jlite.pass.Ir3Fixtures.local;
+import static jlite.pass.Ir3Fixtures.use;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class DeadCodeElimPassTest {
+    private static List<Ir3.Stmt> run(Ir3.Method method) {
+        new FlowPass().doMethod(method);
+        new DeadCodeElimPass().pass(method);
+        List<Ir3.Stmt> kept = new ArrayList<>();
+        for (Ir3.Block block : method.blocks) {
+            kept.addAll(block.statements);
+        }
+        return kept;
+    }
+
+    @Test
+    public void testRemovesDeadDefChain() {
+        // c needs b, which needs a, but nothing needs c, so the whole chain goes in one sweep
+        Ir3.Method method = new Ir3.Method("chain", Ast.Typ.VOID);
+        Ir3.Var a = local(method, "a"), b = local(method, "b"), c = local(method, "c"), d = local(method, "d");
+        Ir3.Stmt liveDef = new Ir3.AssignStmt(d, new Ir3.IntRval(4));
+        Ir3.Stmt print = new Ir3.PrintlnStmt(use(d));
+        Ir3.Stmt ret = new Ir3.ReturnStmt(null);
+        method.statements.add(new Ir3.AssignStmt(a, new Ir3.IntRval(1)));
+        method.statements.add(liveDef);
+        method.statements.add(new Ir3.BinaryStmt(b, use(a), Ast.BinaryOp.PLUS, new Ir3.IntRval(1)));
+        method.statements.add(new Ir3.BinaryStmt(c, use(b), Ast.BinaryOp.MULT, use(a)));
+        method.statements.add(print);
+        method.statements.add(ret);
+
+        List<Ir3.Stmt> kept = run(method);
+        assertEquals(3, kept.size());
+        assertSame(liveDef, kept.get(0));
+        assertSame(print, kept.get(1));
+        assertSame(ret, kept.get(2));
+    }
+
+    @Test
+    public void testKeepsCallWithUnusedResult() {
+        // The call may have side effects, so it stays, and so does the def of its arg
+        Ir3.Method callee = new Ir3.Method("f", Ast.Typ.INT);
+        Ir3.Method method = new Ir3.Method("caller", Ast.Typ.VOID);
+        Ir3.Var x = local(method, "x"), r = local(method, "r"), unused = local(method, "unused");
+        ArrayList<Ir3.Rval> args = new ArrayList<>();
+        args.add(use(x));
+        Ir3.Stmt argDef = new Ir3.AssignStmt(x, new Ir3.IntRval(7));
+        Ir3.Stmt call = new Ir3.CallStmt(r, callee, args);
+        Ir3.Stmt ret = new Ir3.ReturnStmt(null);
+        method.statements.add(argDef);
+        method.statements.add(new Ir3.AssignStmt(unused, use(x)));
+        method.statements.add(call);
+        method.statements.add(ret);
+
+        List<Ir3.Stmt> kept = run(method);
+        assertEquals(3, kept.size());
+        assertSame(argDef, kept.get(0));
+        assertSame(call, kept.get(1));
+        assertSame(ret, kept.get(2));
+    }
+
+    @Test
+    public void testRemovesBlockBehindConstantFalseBranch() {
+        // Ir3Gen turns if (false) into a goto to the else branch, so the then branch cannot be reached
+        Ir3.Method method = new Ir3.Method("ifFalse", Ast.Typ.VOID);
+        Ir3.LabelStmt thenLabel = new Ir3.LabelStmt("L1");
+        Ir3.LabelStmt elseLabel = new Ir3.LabelStmt("L2");
+        Ir3.LabelStmt endLabel = new Ir3.LabelStmt("L3");
+        Ir3.Stmt thenPrint = new Ir3.PrintlnStmt(new Ir3.IntRval(1));
+        Ir3.Stmt elsePrint = new Ir3.PrintlnStmt(new Ir3.IntRval(2));
+        method.statements.add(new Ir3.GotoStmt(elseLabel));
+        method.statements.add(thenLabel);
+        method.statements.add(thenPrint);
+        method.statements.add(new Ir3.GotoStmt(endLabel));
+        method.statements.add(elseLabel);
+        method.statements.add(elsePrint);
+        method.statements.add(endLabel);
+        method.statements.add(new Ir3.ReturnStmt(null));
+
+        new FlowPass().doMethod(method);
+        assertEquals(4, method.blocks.size());
+        Ir3.Block thenBlock = method.blocks.get(1);
+        Ir3.Block endBlock = method.blocks.get(3);
+        assertTrue(endBlock.incoming.contains(thenBlock));
+
+        new DeadCodeElimPass().pass(method);
+        assertEquals(3, method.blocks.size());
+        assertFalse(method.blocks.contains(thenBlock));
+        assertFalse(endBlock.incoming.contains(thenBlock));
+        for (Ir3.Block block : method.blocks) {
+            assertFalse(block.statements.contains(thenPrint));
+        }
+        assertTrue(method.blocks.get(1).statements.contains(elsePrint));
+        assertEquals(method.blocks.size(), method.flow.size());
+    }
+}